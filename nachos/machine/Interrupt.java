@@ -4,9 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +51,7 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+	pending = new PendingInterrupt[16];
     }
 
     /**
@@ -102,6 +100,34 @@ public final class Interrupt {
 	return oldStatus;
     }
 
+    /**
+     * Wait for the next interrupt, as the idle thread does when no other
+     * thread is ready to run. The simulated time is advanced in whole kernel
+     * ticks to the last tick before the earliest pending interrupt is due,
+     * and then interrupts are enabled, which advances the time one more tick
+     * and invokes the handler. This has the same effect as enabling and
+     * disabling interrupts over and over until the handler runs, without
+     * paying for each tick. Interrupts must be disabled when this is called.
+     */
+    public void idle() {
+	Lib.assertTrue(disabled());
+
+	Stats stats = privilege.stats;
+	long due = nextInterruptTime();
+
+	// the 'i' trace shows every tick, so let enable() step through them
+	if (due != Long.MAX_VALUE && !Lib.test(dbgInt)) {
+	    long skip = (due - stats.totalTicks - 1) / Stats.KernelTick;
+
+	    if (skip > 0) {
+		stats.kernelTicks += skip*Stats.KernelTick;
+		stats.totalTicks += skip*Stats.KernelTick;
+	    }
+	}
+
+	enable();
+    }
+
     /**
      * Tests whether interrupts are enabled.
      *
@@ -124,13 +150,13 @@ public final class Interrupt {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
+	PendingInterrupt toOccur = allocatePending(time, type, handler);
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	if (Lib.test(dbgInt))
+	    System.out.println("Scheduling the " + type +
+			       " interrupt handler at time = " + time);
 
-	pending.add(toOccur);
+	addPending(toOccur);
     }
 
     private void tick(boolean inKernelMode) {
@@ -153,6 +179,34 @@ public final class Interrupt {
 	enabled = true;
     }
 
+    private long nextInterruptTime() {
+	if (numPending == 0)
+	    return Long.MAX_VALUE;
+
+	return pending[0].time;
+    }
+
+    private void creditUserTicks(long ticks) {
+	Lib.assertTrue(ticks >= 0);
+
+	// keep the per-tick trace identical to the unbatched case
+	if (Lib.test(dbgInt)) {
+	    for (long i=0; i<ticks; i++)
+		tick(false);
+	    return;
+	}
+
+	Stats stats = privilege.stats;
+
+	Lib.assertTrue(stats.totalTicks + ticks*Stats.UserTick <
+		       nextInterruptTime());
+
+	stats.userTicks += ticks*Stats.UserTick;
+	stats.totalTicks += ticks*Stats.UserTick;
+
+	enabled = true;
+    }
+
     private void checkIfDue() {
 	long time = privilege.stats.totalTicks;
 
@@ -161,27 +215,30 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
+	if (numPending == 0)
 	    return;
 
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (pending[0].time > time)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
+	while (numPending > 0 && pending[0].time <= time) {
+	    PendingInterrupt next = removeFirstPending();
 
 	    Lib.assertTrue(next.time <= time);
 
+	    // the handler may schedule again, so free the node before running it
+	    String type = next.type;
+	    Runnable handler = next.handler;
+	    freePending(next);
+
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    Lib.debug(dbgInt, "  " + type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
@@ -192,21 +249,110 @@ public final class Interrupt {
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
-	    System.out.println("  " + toOccur.type +
-			       ", scheduled at " + toOccur.time);
+	PendingInterrupt[] sorted = Arrays.copyOf(pending, numPending);
+	Arrays.sort(sorted);
+
+	for (int i=0; i<sorted.length; i++) {
+	    System.out.println("  " + sorted[i].type +
+			       ", scheduled at " + sorted[i].time);
 	}
 
 	System.out.println("  (end of list)");
     }
 
+    /**
+     * Return a pending interrupt node for the specified event, reusing a node
+     * from the free list if there is one.
+     */
+    private PendingInterrupt allocatePending(long time, String type,
+					     Runnable handler) {
+	PendingInterrupt toOccur = freeList;
+	if (toOccur != null)
+	    freeList = toOccur.nextFree;
+	else
+	    toOccur = new PendingInterrupt();
+
+	toOccur.time = time;
+	toOccur.type = type;
+	toOccur.handler = handler;
+	toOccur.id = numPendingInterruptsCreated++;
+	toOccur.nextFree = null;
+
+	return toOccur;
+    }
+
+    /**
+     * Return a node to the free list once its interrupt has been removed
+     * from the pending heap.
+     */
+    private void freePending(PendingInterrupt toOccur) {
+	toOccur.type = null;
+	toOccur.handler = null;
+	toOccur.nextFree = freeList;
+	freeList = toOccur;
+    }
+
+    /**
+     * Add an interrupt to the pending heap, sifting it up past every entry
+     * that is due later, or at the same time but was scheduled later.
+     */
+    private void addPending(PendingInterrupt toOccur) {
+	if (numPending == pending.length)
+	    pending = Arrays.copyOf(pending, pending.length*2);
+
+	int i = numPending++;
+	while (i > 0) {
+	    int parent = (i-1)/2;
+	    if (!toOccur.before(pending[parent]))
+		break;
+
+	    pending[i] = pending[parent];
+	    i = parent;
+	}
+
+	pending[i] = toOccur;
+    }
+
+    /**
+     * Remove and return the earliest pending interrupt. Ties in time are
+     * broken by <tt>id</tt>, so interrupts due at the same time are handled
+     * in the order they were scheduled.
+     */
+    private PendingInterrupt removeFirstPending() {
+	Lib.assertTrue(numPending > 0);
+
+	PendingInterrupt first = pending[0];
+	PendingInterrupt last = pending[--numPending];
+	pending[numPending] = null;
+
+	if (numPending > 0) {
+	    int i = 0;
+	    while (true) {
+		int child = 2*i + 1;
+		if (child >= numPending)
+		    break;
+
+		if (child+1 < numPending &&
+		    pending[child+1].before(pending[child]))
+		    child++;
+
+		if (!pending[child].before(last))
+		    break;
+
+		pending[i] = pending[child];
+		i = child;
+	    }
+
+	    pending[i] = last;
+	}
+
+	return first;
+    }
+
     private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
+	boolean before(PendingInterrupt toOccur) {
+	    return time < toOccur.time ||
+		(time == toOccur.time && id < toOccur.id);
 	}
 
 	public int compareTo(Object o) {
@@ -230,6 +376,7 @@ public final class Interrupt {
 	Runnable handler;
 
 	private long id;
+	private PendingInterrupt nextFree;
     }
     
     private long numPendingInterruptsCreated = 0;
@@ -237,7 +384,16 @@ public final class Interrupt {
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+
+    /**
+     * Pending interrupts, kept as a binary min-heap in
+     * <tt>pending[0..numPending-1]</tt>, ordered by time and then by
+     * <tt>id</tt>.
+     */
+    private PendingInterrupt[] pending;
+    private int numPending = 0;
+    /** Nodes of interrupts that have already been handled, for reuse. */
+    private PendingInterrupt freeList = null;
 
     private static final char dbgInt = 'i';
 
@@ -249,5 +405,13 @@ public final class Interrupt {
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
+
+	public long nextInterruptTime() {
+	    return Interrupt.this.nextInterruptTime();
+	}
+
+	public void creditUserTicks(long ticks) {
+	    Interrupt.this.creditUserTicks(ticks);
+	}
     }
 }
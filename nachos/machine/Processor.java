@@ -46,6 +46,9 @@ public final class Processor {
 	    registers[i] = 0;
 
 	mainMemory = new byte[pageSize * numPhysPages];
+	decodedPages = new Decoded[numPhysPages][];
+
+	batchingTicks = Config.getBoolean("Processor.batchTicks", false);
 
 	if (usingTLB) {
 	    translations = new TranslationEntry[tlbSize];
@@ -98,13 +101,49 @@ public final class Processor {
 		inst.run();
 	    }
 	    catch (MipsException e) {
+		flushTicks();
 		e.handle();
 	    }
 
-	    privilege.interrupt.tick(false);
+	    tick();
+	}
+    }
+
+    /**
+     * Advance the simulated time by one user tick. If batching is enabled and
+     * no interrupt can fall due on this tick, the tick is only counted here;
+     * otherwise the counted ticks are credited and <tt>tick(false)</tt> is
+     * called on the interrupt controller, which may invoke handlers.
+     */
+    private void tick() {
+	if (batchedTicks < batchableTicks) {
+	    batchedTicks++;
+	    return;
+	}
+
+	flushTicks();
+	privilege.interrupt.tick(false);
+
+	// handlers may have scheduled new interrupts, so look again
+	if (batchingTicks) {
+	    long due = privilege.interrupt.nextInterruptTime();
+	    batchableTicks = Math.max(due - privilege.stats.totalTicks - 1, 0);
 	}
     }
 
+    /**
+     * Credit any ticks counted by <tt>tick()</tt> to the interrupt controller
+     * and stop batching until the next real tick. Must be called before
+     * anything outside the processor can observe the simulated time.
+     */
+    private void flushTicks() {
+	if (batchedTicks > 0)
+	    privilege.interrupt.creditUserTicks(batchedTicks);
+
+	batchedTicks = 0;
+	batchableTicks = 0;
+    }
+
     /**
      * Read and return the contents of the specified CPU register.
      *
@@ -238,6 +277,36 @@ public final class Processor {
 	return mainMemory;
     }
 
+    /**
+     * Discard any predecoded instructions cached for the specified physical
+     * page. The processor does this itself when a user store modifies a page,
+     * but a kernel that writes physical memory directly (through
+     * <tt>getMemory()</tt>) must call this for every page it modifies, or the
+     * processor may keep executing the old contents of that page.
+     *
+     * @param	ppn	the physical page that was modified.
+     */
+    public void invalidatePage(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+	decodedPages[ppn] = null;
+    }
+
+    /**
+     * Count a page that the kernel loaded into memory to resolve a fault, in
+     * the demand paging statistics printed when Nachos halts.
+     *
+     * @param	ticks	the time spent handling the fault.
+     */
+    public void recordPageLoad(long ticks) {
+	Lib.assertTrue(ticks >= 0);
+
+	privilege.stats.numPagesLoaded++;
+	privilege.stats.pageFaultTicks += ticks;
+	privilege.stats.maxPageFaultTicks =
+	    Math.max(privilege.stats.maxPageFaultTicks, ticks);
+    }
+
     /**
      * Concatenate a page number and an offset into an address.
      *
@@ -406,8 +475,13 @@ public final class Processor {
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
 
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	int paddr = translate(vaddr, size, true);
+
+	// self-modifying code: forget anything decoded from this page
+	if (decodedPages[paddr/pageSize] != null)
+	    decodedPages[paddr/pageSize] = null;
+
+	Lib.bytesFromInt(mainMemory, paddr, size, value);
     }
 
     /**
@@ -555,6 +629,23 @@ public final class Processor {
     private int numPhysPages;
     /** Main memory for user programs. */
     private byte[] mainMemory;
+    /**
+     * Instructions already decoded from each physical page, indexed by
+     * physical page number and then by word offset within the page. A page's
+     * entry is <tt>null</tt> until an instruction is fetched from it, and is
+     * reset to <tt>null</tt> whenever the page is written.
+     */
+    private Decoded[][] decodedPages;
+
+    /**
+     * <tt>true</tt> if <tt>tick()</tt> should batch user ticks up to the next
+     * pending interrupt, as selected by the <tt>Processor.batchTicks</tt> key.
+     */
+    private boolean batchingTicks;
+    /** Number of user ticks counted but not yet credited to the clock. */
+    private long batchedTicks = 0;
+    /** Number of user ticks that may be counted before a real tick. */
+    private long batchableTicks = 0;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
@@ -626,78 +717,63 @@ public final class Processor {
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
-	}
-
-	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
+	    int paddr = translate(registers[regPC], 4, false);
 
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
+	    // look for this word in the predecoded cache before decoding it
+	    Decoded[] page = decodedPages[paddr/pageSize];
+	    if (page == null) {
+		page = new Decoded[pageSize/4];
+		decodedPages[paddr/pageSize] = page;
 	    }
 
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
+	    int index = (paddr%pageSize) / 4;
+	    if (page[index] == null)
+		page[index] = new Decoded(Lib.bytesToInt(mainMemory, paddr, 4));
+
+	    decoded = page[index];
+
+	    if (Lib.test(dbgProcessor))
+		System.out.println("\t\tinstruction=0x" +
+				   Lib.toHexString(decoded.value));
+	}
+
+	private void decode() {
+	    Decoded d = decoded;
+
+	    value = d.value;
+	    op = d.op;
+	    rs = d.rs;
+	    rt = d.rt;
+	    rd = d.rd;
+	    sh = d.sh;
+	    func = d.func;
+	    target = d.target;
+	    imm = d.imm;
+
+	    operation = d.operation;
+	    name = d.name;
+	    format = d.format;
+	    flags = d.flags;
+
+	    size = d.size;
+	    dstReg = d.dstReg;
 
 	    mask = 0xFFFFFFFF;
 	    branch = true;
 
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
-
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + d.branchOffset;
 	    else if (format == Mips.JFMT)
-		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
+		jtarget = (registers[regNextPC]&0xF0000000) | d.jumpTarget;
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -1052,6 +1128,7 @@ public final class Processor {
 	}
 
 	// state used to execute a single instruction
+	Decoded decoded;
 	int value, op, rs, rt, rd, sh, func, target, imm;
 	int operation, format, flags;
 	String name;
@@ -1063,6 +1140,81 @@ public final class Processor {
 	boolean branch;
     }
 
+    /**
+     * The parts of a decoded instruction that depend only on the instruction
+     * word, and not on the register file. These are computed once per word
+     * and cached in <tt>decodedPages</tt>, so that loops do not pay for
+     * field extraction and the opcode table lookups on every iteration.
+     */
+    private static class Decoded {
+	Decoded(int value) {
+	    this.value = value;
+
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // get the register-independent parts of jtarget
+	    int signedImm = Lib.extend(value, 0, 16);
+	    branchOffset = signedImm<<2;
+	    jumpTarget = target<<2;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags))
+		imm = signedImm & 0xFFFF;
+	    else
+		imm = signedImm;
+	}
+
+	final int value, op, rs, rt, rd, sh, func, target, imm;
+	final int operation, format, flags;
+	final String name;
+
+	final int size, dstReg, branchOffset, jumpTarget;
+    }
+
     private static class Mips {
 	Mips() {
 	}
@@ -29,6 +29,23 @@ public final class Stats {
 			   + ", TLB misses " + numTLBMisses);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+	if (numPagesLoaded > 0)
+	    System.out.println("Demand paging: pages loaded " + numPagesLoaded
+			       + ", ticks per fault avg "
+			       + pageFaultTicks/numPagesLoaded
+			       + ", max " + maxPageFaultTicks);
+	if (numThreadPoolHits + numThreadPoolMisses > 0)
+	    System.out.println("Thread pool: hits " + numThreadPoolHits
+			       + ", misses " + numThreadPoolMisses
+			       + ", idle " + threadPoolSize);
+	if (numTimeoutsSet > 0)
+	    System.out.println("Alarm: timeouts " + numTimeoutsSet
+			       + ", expired " + numTimeoutsExpired
+			       + " in " + numAlarmBatches + " batches"
+			       + ", most pending " + maxTimeoutsPending);
+	if (numRealTimeJobs > 0)
+	    System.out.println("Real-time: jobs " + numRealTimeJobs
+			       + ", deadline misses " + numDeadlineMisses);
     }
 
     /**
@@ -57,10 +74,43 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /** The total number of pages loaded into memory on demand. */
+    public int numPagesLoaded = 0;
+    /** The total number of ticks spent handling faults that loaded a page. */
+    public long pageFaultTicks = 0;
+    /** The most ticks spent handling a single fault that loaded a page. */
+    public long maxPageFaultTicks = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /**
+     * The total number of TCBs started on a Java thread taken from the TCB
+     * pool.
+     */
+    public int numThreadPoolHits = 0;
+    /**
+     * The total number of TCBs started on a new Java thread while the TCB
+     * pool was enabled.
+     */
+    public int numThreadPoolMisses = 0;
+    /** The number of idle Java threads in the TCB pool at the last start. */
+    public int threadPoolSize = 0;
+    /** The total number of alarm timeouts (including sleeps) set. */
+    public int numTimeoutsSet = 0;
+    /** The total number of alarm timeouts that went off. */
+    public int numTimeoutsExpired = 0;
+    /** The number of alarm interrupts in which any timeouts went off. */
+    public int numAlarmBatches = 0;
+    /** The largest number of alarm timeouts pending at once. */
+    public int maxTimeoutsPending = 0;
+    /** The total number of real-time jobs that have completed. */
+    public int numRealTimeJobs = 0;
+    /**
+     * The total number of real-time jobs that completed after their
+     * deadline.
+     */
+    public int numDeadlineMisses = 0;
 
     /**
      * The amount to advance simulated time after each user instructions is
@@ -5,13 +5,19 @@ package nachos.machine;
 import nachos.security.*;
 import nachos.threads.KThread;
 
-import java.util.Vector;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
 import java.security.PrivilegedAction;
 
 /**
  * A TCB simulates the low-level details necessary to create, context-switch,
  * and destroy Nachos threads. Each TCB controls an underlying JVM Thread
- * object.
+ * object. The <tt>TCB.threads</tt> key selects whether these are platform
+ * threads (the default) or, on JVMs that support them, virtual threads.
  *
  * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
@@ -40,6 +46,84 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	String threads = Config.getString("TCB.threads", "platform");
+	if (threads.equals("virtual")) {
+	    findVirtualThreadBuilder();
+	    if (virtualThreadBuilder == null)
+		System.out.print(" (virtual threads unavailable)");
+	}
+	else {
+	    Lib.assertTrue(threads.equals("platform"),
+			   "bad value for TCB.threads: " + threads);
+	}
+
+	String handoff = Config.getString("TCB.handoff", "park");
+	if (handoff.equals("park"))
+	    parking = true;
+	else if (handoff.equals("monitor"))
+	    parking = (virtualThreadBuilder != null);
+	else
+	    Lib.assertNotReached("bad value for TCB.handoff: " + handoff);
+
+	spinCount = Config.getInteger("TCB.spinCount", 0);
+
+	threadLimit = Config.getInteger("TCB.maxThreads",
+					virtualThreadBuilder != null ?
+					maxVirtualThreads : maxThreads);
+	stackSize = Config.getInteger("TCB.stackSize", 0);
+
+	// virtual threads are cheap to create, so there is nothing to pool
+	int poolSize = Config.getInteger("TCB.poolSize", 0);
+	if (poolSize > 0 && virtualThreadBuilder == null)
+	    threadPool = new ArrayBlockingQueue<Carrier>(poolSize);
+    }
+
+    /**
+     * Look up <tt>Thread.ofVirtual()</tt> and the builder's
+     * <tt>unstarted(Runnable)</tt> method. These are not part of every JVM
+     * that can run Nachos, so they are found by reflection, and
+     * <tt>virtualThreadBuilder</tt> is left <tt>null</tt> if they are
+     * missing.
+     */
+    private static void findVirtualThreadBuilder() {
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			Object builder =
+			    Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> clsBuilder = Class.forName("java.lang.Thread$Builder");
+
+			unstartedVirtualThread =
+			    clsBuilder.getMethod("unstarted", Runnable.class);
+			virtualThreadBuilder = builder;
+		    }
+		    catch (Exception e) {
+			virtualThreadBuilder = null;
+		    }
+		}
+	    });
+    }
+
+    /**
+     * Create, but do not start, the Java thread for a TCB. Must be called
+     * with privilege.
+     */
+    private static Thread newJavaThread(Runnable target) {
+	if (virtualThreadBuilder != null) {
+	    try {
+		return (Thread) unstartedVirtualThread.invoke(virtualThreadBuilder,
+							      target);
+	    }
+	    catch (Exception e) {
+		Lib.assertNotReached("could not create virtual thread: " + e);
+	    }
+	}
+
+	if (stackSize == 0)
+	    return new Thread(target);
+	else
+	    return new Thread(null, target, "TCB", stackSize);
     }
     
     /**
@@ -66,7 +150,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -86,26 +170,52 @@ public final class TCB {
 	this.target = target;
 
 	if (!isFirstTCB) {
-	    /* If this is not the first TCB, we have to make a new Java thread
-	     * to run it. Creating Java threads is a privileged operation.
+	    /* If this is not the first TCB, we need a Java thread to run it.
+	     * If a carrier left over from a destroyed TCB is waiting in the
+	     * pool, we hand this TCB to it. Otherwise we have to make a new
+	     * Java thread. Creating Java threads is a privileged operation.
 	     */
-	    tcbTarget = new Runnable() {
-		    public void run() { threadroot(); }
-		};
+	    Carrier carrier = null;
+	    if (threadPool != null) {
+		carrier = threadPool.poll();
+		if (carrier != null)
+		    privilege.stats.numThreadPoolHits++;
+		else
+		    privilege.stats.numThreadPoolMisses++;
+		privilege.stats.threadPoolSize = threadPool.size();
+	    }
+
+	    boolean pooled = (carrier != null);
 
-	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
-		});
+	    if (pooled) {
+		javaThread = carrier.thread;
+	    }
+	    else {
+		final Carrier newCarrier = new Carrier();
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+			    javaThread = newJavaThread(newCarrier);
+			}
+		    });
+		carrier = newCarrier;
+		carrier.thread = javaThread;
+	    }
 
 	    /* The Java thread hasn't yet started, but we need to get it
 	     * blocking in yield(). We do this by temporarily turning off the
-	     * current TCB, starting the new Java thread, and waiting for it
-	     * to wake us up from threadroot(). Once the new TCB wakes us up,
-	     * it's safe to context switch to the new TCB.
+	     * current TCB, starting the new Java thread (or waking the pooled
+	     * one), and waiting for it to wake us up from threadroot(). Once
+	     * the new TCB wakes us up, it's safe to context switch to the new
+	     * TCB.
 	     */
 	    currentTCB.running = false;
-	    
-	    this.javaThread.start();
+
+	    carrier.tcb = this;
+	    if (pooled)
+		LockSupport.unpark(javaThread);
+	    else
+		this.javaThread.start();
+
 	    currentTCB.waitForInterrupt();
 	}
 	else {
@@ -244,7 +354,7 @@ public final class TCB {
 		privilege.exit(1);
 	    }
 
-	    runningThreads.removeElement(this);
+	    runningThreads.remove(this);
 	    if (runningThreads.isEmpty())
 		privilege.exit(0);
 	}
@@ -252,7 +362,7 @@ public final class TCB {
 	    System.out.print("\n");
 	    e.printStackTrace();
 
-	    runningThreads.removeElement(this);
+	    runningThreads.remove(this);
 	    if (runningThreads.isEmpty())
 		privilege.exit(1);
 	    else
@@ -286,11 +396,31 @@ public final class TCB {
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
+     *
+     * <p>
+     * Unless <tt>TCB.handoff</tt> selects the monitor, the thread first spins
+     * on <tt>running</tt> for <tt>spinCount</tt> iterations, since on a
+     * multiprocessor the handoff usually arrives within a few microseconds,
+     * and then parks. Parking avoids taking the monitor on both sides of
+     * every context switch. Virtual threads always park, because one blocked
+     * in <tt>wait()</tt> keeps its carrier thread, and with thousands of
+     * blocked TCBs the JVM would run out of carriers.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
+    private void waitForInterrupt() {
+	if (parking) {
+	    for (int i=0; i<spinCount && !running; i++)
+		;
+
+	    while (!running)
+		LockSupport.park(this);
+	    return;
+	}
+
+	synchronized (this) {
+	    while (!running) {
+		try { wait(); }
+		catch (InterruptedException e) { }
+	    }
 	}
     }
 
@@ -300,9 +430,18 @@ public final class TCB {
      * starting and destroying TCBs, as well as in context switching to this
      * TCB.
      */
-    private synchronized void interrupt() {
-	running = true;
-	notify();
+    private void interrupt() {
+	if (parking) {
+	    Thread thread = javaThread;
+	    running = true;
+	    LockSupport.unpark(thread);
+	    return;
+	}
+
+	synchronized (this) {
+	    running = true;
+	    notify();
+	}
     }
 
     private void associateThread(KThread thread) {
@@ -328,10 +467,41 @@ public final class TCB {
 
     /**
      * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * existence, unless the <tt>TCB.maxThreads</tt> key says otherwise.
      */
     public static final int maxThreads = 250;
 
+    /**
+     * The default limit on started, non-destroyed TCB's when they run on
+     * virtual threads, which cost far less than platform threads.
+     */
+    public static final int maxVirtualThreads = 100000;
+
+    /** The limit on started, non-destroyed TCB's actually in force. */
+    private static int threadLimit = maxThreads;
+
+    /**
+     * The stack size requested for platform threads, from the
+     * <tt>TCB.stackSize</tt> key, or 0 for the JVM's default.
+     */
+    private static long stackSize = 0;
+
+    /**
+     * The <tt>Thread.Builder</tt> used to create virtual threads, or
+     * <tt>null</tt> if TCBs run on platform threads.
+     */
+    private static Object virtualThreadBuilder = null;
+    /** <tt>Thread.Builder.unstarted(Runnable)</tt>, found by reflection. */
+    private static Method unstartedVirtualThread = null;
+
+    /**
+     * <tt>true</tt> if TCBs hand off with <tt>LockSupport.park()</tt> and
+     * <tt>unpark()</tt>, <tt>false</tt> if they wait on their monitors.
+     */
+    private static boolean parking = true;
+    /** Times to check <tt>running</tt> before parking. */
+    private static int spinCount = 0;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -348,18 +518,21 @@ public final class TCB {
     private static TCB currentTCB = null;
 
     /**
-     * A vector containing all <i>running</i> TCB objects. It is initialized to
-     * an empty vector when the <tt>TCB</tt> class is loaded. TCB objects are
+     * A set containing all <i>running</i> TCB objects. It is initialized to
+     * an empty set when the <tt>TCB</tt> class is loaded. TCB objects are
      * added only in <tt>start(Runnable)</tt>, which can only be invoked once
      * on each TCB object. TCB objects are removed only in each of the
      * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
      * invoked on thread termination. The maximum number of threads in
-     * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
+     * <tt>runningThreads</tt> is limited to <tt>threadLimit</tt> by
      * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
      * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once
-     * the first TCB is created, this vector is basically never empty.
+     * the first TCB is created, this set is basically never empty. It is a
+     * set rather than a vector so that removing one of many thousands of
+     * TCBs does not scan all the others.
      */
-    private static Vector<TCB> runningThreads = new Vector<TCB>();
+    private static Set<TCB> runningThreads =
+	Collections.synchronizedSet(new HashSet<TCB>());
     
     private static Privilege privilege;
     private static KThread toBeDestroyed = null;
@@ -388,7 +561,7 @@ public final class TCB {
      * destroying a TCB, this is temporarily true for a thread other than that
      * of the current TCB.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -400,7 +573,37 @@ public final class TCB {
     private KThread nachosThread = null;
     private boolean associated = false;
     private Runnable target;
-    private Runnable tcbTarget;
+
+    /**
+     * Idle carriers waiting for <tt>start()</tt> to give them a TCB, or
+     * <tt>null</tt> if the <tt>TCB.poolSize</tt> key does not ask for a pool.
+     */
+    private static ArrayBlockingQueue<Carrier> threadPool = null;
+
+    /**
+     * The body of every Java thread created by <tt>start()</tt>. It runs
+     * <tt>threadroot()</tt> for the TCB it was given. Once that TCB has been
+     * destroyed, the thread joins <tt>threadPool</tt> if there is room and
+     * waits there for <tt>start()</tt> to give it another TCB; otherwise it
+     * exits, as it always did before pooling.
+     */
+    private static class Carrier implements Runnable {
+	public void run() {
+	    while (true) {
+		tcb.threadroot();
+		tcb = null;
+
+		if (threadPool == null || !threadPool.offer(this))
+		    return;
+
+		while (tcb == null)
+		    LockSupport.park(this);
+	    }
+	}
+
+	private Thread thread;
+	private volatile TCB tcb = null;
+    }
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
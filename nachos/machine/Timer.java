@@ -13,6 +13,11 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is
  * a small degree of randomness here, so interrupts do not occur exactly every
  * 500 ticks.
+ *
+ * <p>
+ * The timer also has a one-shot alarm, which can be set to interrupt at an
+ * exact time with <tt>setAlarm()</tt>. Only one alarm time is held at once;
+ * setting it again replaces the earlier time.
  */
 public final class Timer {
     /**
@@ -30,6 +35,10 @@ public final class Timer {
 		public void run() { timerInterrupt(); }
 	    };
 	
+	alarmInterrupt = new Runnable() {
+		public void run() { alarmInterrupt(); }
+	    };
+
 	autoGraderInterrupt = new Runnable() {
 		public void run() {
 		    Machine.autoGrader().timerInterrupt(Timer.this.privilege,
@@ -50,6 +59,45 @@ public final class Timer {
 	this.handler = handler;
     }
 
+    /**
+     * Set the callback to use as the one-shot alarm handler. It is called,
+     * with interrupts disabled, once the time set by <tt>setAlarm()</tt> is
+     * reached.
+     *
+     * @param	handler		the alarm interrupt handler.
+     */
+    public void setAlarmHandler(Runnable handler) {
+	this.alarmHandler = handler;
+    }
+
+    /**
+     * Set the one-shot alarm to interrupt at the specified time, replacing
+     * any alarm time set earlier. If the time has already passed, the alarm
+     * interrupts on the next tick.
+     *
+     * @param	when	the time at which to call the alarm handler.
+     */
+    public void setAlarm(long when) {
+	alarmTime = when;
+
+	/* The interrupt controller cannot take back an interrupt, so an
+	 * interrupt that is already due at or before this time is left to
+	 * re-arm the alarm when it goes off, rather than scheduling another.
+	 */
+	if (when < alarmArmedAt) {
+	    long delay = Math.max(when - getTime(), 1);
+	    privilege.interrupt.schedule(delay, "alarm", alarmInterrupt);
+	    alarmArmedAt = getTime() + delay;
+	}
+    }
+
+    /**
+     * Cancel the one-shot alarm, if it is set.
+     */
+    public void cancelAlarm() {
+	alarmTime = Long.MAX_VALUE;
+    }
+
     /**
      * Get the current time.
      *
@@ -59,6 +107,44 @@ public final class Timer {
 	return privilege.stats.totalTicks;
     }
 
+    /**
+     * Count a timeout that the kernel has set, in the alarm statistics
+     * printed when Nachos halts.
+     *
+     * @param	numPending	the number of timeouts now pending, including
+     *				this one.
+     */
+    public void recordTimeoutSet(int numPending) {
+	privilege.stats.numTimeoutsSet++;
+	privilege.stats.maxTimeoutsPending =
+	    Math.max(privilege.stats.maxTimeoutsPending, numPending);
+    }
+
+    /**
+     * Count the timeouts that went off together in one interrupt.
+     *
+     * @param	numExpired	the number of timeouts that went off.
+     */
+    public void recordTimeoutsExpired(int numExpired) {
+	Lib.assertTrue(numExpired > 0);
+
+	privilege.stats.numTimeoutsExpired += numExpired;
+	privilege.stats.numAlarmBatches++;
+    }
+
+    /**
+     * Count a real-time job that has completed, in the statistics printed
+     * when Nachos halts.
+     *
+     * @param	missedDeadline	<tt>true</tt> if the job completed after its
+     *				deadline.
+     */
+    public void recordRealTimeJob(boolean missedDeadline) {
+	privilege.stats.numRealTimeJobs++;
+	if (missedDeadline)
+	    privilege.stats.numDeadlineMisses++;
+    }
+
     private void timerInterrupt() {
 	scheduleInterrupt();
 	scheduleAutoGraderInterrupt();
@@ -69,6 +155,24 @@ public final class Timer {
 	    handler.run();
     }
 
+    private void alarmInterrupt() {
+	long time = getTime();
+
+	if (alarmArmedAt <= time)
+	    alarmArmedAt = Long.MAX_VALUE;
+
+	if (alarmTime <= time) {
+	    alarmTime = Long.MAX_VALUE;
+	    if (alarmHandler != null)
+		alarmHandler.run();
+	}
+
+	// another interrupt may still be due before the alarm, but we no
+	// longer know when, so arm a new one
+	if (alarmTime != Long.MAX_VALUE && alarmArmedAt == Long.MAX_VALUE)
+	    setAlarm(alarmTime);
+    }
+
     private void scheduleInterrupt() {
 	int delay = Stats.TimerTicks;
 	delay += Lib.random(delay/10) - (delay/20);
@@ -83,6 +187,13 @@ public final class Timer {
     private long lastTimerInterrupt;
     private Runnable timerInterrupt;
     private Runnable autoGraderInterrupt;
+    private Runnable alarmInterrupt;
+
+    /** The time the alarm is set for, or <tt>Long.MAX_VALUE</tt>. */
+    private long alarmTime = Long.MAX_VALUE;
+    /** The earliest alarm interrupt still pending, if known. */
+    private long alarmArmedAt = Long.MAX_VALUE;
+    private Runnable alarmHandler = null;
 
     private Privilege privilege;
     private Runnable handler = null;
@@ -13,7 +13,9 @@ import nachos.threads.*;
  * The post office uses a "postal worker" thread to wait for messages to arrive
  * from the network and to place them in the appropriate queues. This cannot
  * be done in the receive interrupt handler because each queue (implemented
- * with a <tt>SynchList</tt>) is protected by a lock.
+ * with a <tt>SynchList</tt>) is protected by a lock. A thread waiting in
+ * <tt>receive()</tt> sleeps on the queue's <tt>Condition2</tt>, linked through
+ * its own <tt>KThread</tt>.
  */
 public class PostOffice {
     /**
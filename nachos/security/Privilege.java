@@ -158,6 +158,24 @@ public abstract class Privilege {
 	 *		MIPS user code.
 	 */
 	public void tick(boolean inKernelMode);
+
+	/**
+	 * Return the simulated time at which the earliest pending interrupt
+	 * is due, or <tt>Long.MAX_VALUE</tt> if no interrupts are pending.
+	 *
+	 * @return	the time of the next pending interrupt.
+	 */
+	public long nextInterruptTime();
+
+	/**
+	 * Advance the simulated time by several user ticks at once, without
+	 * checking for due interrupts. This has the same effect as calling
+	 * <tt>tick(false)</tt> <i>ticks</i> times, so the caller must ensure
+	 * that no pending interrupt falls due within them.
+	 *
+	 * @param	ticks	the number of user ticks to credit.
+	 */
+	public void creditUserTicks(long ticks);
     }
 
     /**
@@ -1,26 +1,52 @@
 package nachos.threads;
-import java.util.PriorityQueue;
 import nachos.machine.*;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Pending timeouts are kept in a hashed timing wheel: an array of
+ * <tt>Alarm.wheelSlots</tt> slots, each covering
+ * <tt>Alarm.wheelGranularity</tt> ticks, with every timeout linked into the
+ * slot for its wake time, modulo the size of the wheel. Adding or cancelling
+ * a timeout takes constant time, and the timeouts that are due are found by
+ * visiting only the slots that time has passed since the last interrupt. A
+ * timeout more than one turn of the wheel away simply stays in its slot until
+ * its turn comes around.
  */
 public class Alarm {
     /**
      * Allocate a new Alarm. Set the machine's timer interrupt handler to this
-     * alarm's callback.
+     * alarm's callback, and the timer's one-shot alarm handler to wake
+     * sleeping threads.
      *
      * <p><b>Note</b>: Nachos will not function correctly with more than one
      * alarm.
      */
     public Alarm() {
+       int slots = Config.getInteger("Alarm.wheelSlots", 512);
+       Lib.assertTrue(slots >= 64 && Integer.bitCount(slots) == 1);
+       granularity = Config.getInteger("Alarm.wheelGranularity",
+                                       Stats.KernelTick);
+       Lib.assertTrue(granularity > 0);
+
+       wheel = new Timeout[slots];
+       occupied = new long[slots / 64];
+       cursor = Machine.timer().getTime() / granularity;
+
        //Instancia timer interrupt con un runnable como unico argumento
 	     Machine.timer().setInterruptHandler(new Runnable() {
 		   public void run() {
          timerInterrupt();
        }
 	    });
+       //La alarma de un disparo despierta a los threads justo a su hora
+       Machine.timer().setAlarmHandler(new Runnable() {
+       public void run() {
+         alarmInterrupt();
+       }
+      });
     }
 
     /**
@@ -31,58 +57,440 @@ public class Alarm {
      */
     public void timerInterrupt() {
       boolean intStatus = Machine.interrupt().disable();
-      while (!waitQueue.isEmpty())
-         //comparamos con el primer elemento de la lista y si ya se tuvo que haber despertado lo pongo en ready
-			   if (waitQueue.peek().wakeTime <= Machine.timer().getTime())
-             //Si es menor lo quitamos de la cola
-				     waitQueue.poll().thread.ready();
-			   else
-             break;
-	    KThread.currentThread().yield();
+      expireTimeouts();
+      //Los threads de tiempo real, y si no el scheduler, deciden si el thread actual cede el CPU
+      if (KThread.shouldPreempt(false))
+	      KThread.currentThread().yield();
       Machine.interrupt().restore(intStatus);
 
     }
 
     /**
-     * Put the current thread to sleep for at least <i>x</i> ticks,
-     * waking it up in the timer interrupt handler. The thread must be
-     * woken up (placed in the scheduler ready set) during the first timer
-     * interrupt where
+     * The one-shot alarm handler. Runs every timeout that is due, and lets a
+     * thread that was just woken preempt the current thread if the
+     * scheduler (or the real-time class) wants it to run right away.
+     */
+    private void alarmInterrupt() {
+      expireTimeouts();
+      if (KThread.shouldPreempt(true))
+        KThread.currentThread().yield();
+    }
+
+    /**
+     * Put the current thread to sleep for at least <i>x</i> ticks. The
+     * thread is woken up (placed in the scheduler ready set) by the timer's
+     * one-shot alarm at
      *
      * <p><blockquote>
      * (current time) >= (WaitUntil called time)+(x)
      * </blockquote>
      *
+     * rounded up to the wheel's granularity, rather than at the next periodic
+     * timer interrupt.
+     *
      * @param	x	the minimum number of clock ticks to wait.
      *
      * @see	nachos.machine.Timer#getTime()
      */
     public void waitUntil(long x) {
-        long currTime = Machine.timer().getTime();
-	      long wakeTime = currTime + x;
-        //Agregar current thread con su wakeTime en el waitQueue
+        if (x <= 0)
+          return;
+
         boolean intStatus = Machine.interrupt().disable();
-        waitQueue.add(new ThreadStatusHolder(KThread.currentThread(), wakeTime));
-        KThread.currentThread().sleep();
+        sleepUntil(Machine.timer().getTime() + x, false);
         Machine.interrupt().restore(intStatus);
     }
 
-	   private PriorityQueue<ThreadStatusHolder> waitQueue = new PriorityQueue<ThreadStatusHolder>();
+    /**
+     * Like <tt>waitUntil()</tt>, but another thread can end the wait early
+     * by calling <tt>wake()</tt> on this thread.
+     *
+     * @param	x	the maximum number of clock ticks to wait.
+     * @return	<tt>true</tt> if the wait timed out after <i>x</i> ticks, or
+     *		<tt>false</tt> if it was ended early by <tt>wake()</tt>.
+     */
+    public boolean timedWait(long x) {
+        if (x <= 0)
+          return true;
 
-	   private class ThreadStatusHolder implements Comparable<ThreadStatusHolder> {
-       //PrivateStatusHolder guarda el thread que llamo waitUntil y su wake time
-		     private KThread thread;
-		     private long wakeTime;
+        boolean intStatus = Machine.interrupt().disable();
+        boolean timedOut = sleepUntil(Machine.timer().getTime() + x, true);
+        Machine.interrupt().restore(intStatus);
+        return timedOut;
+    }
 
-		     ThreadStatusHolder(KThread thread, long wakeTime) {
-			        this.thread = thread;
-			        this.wakeTime = wakeTime;
-		}
+    /**
+     * End the <tt>timedWait()</tt> of the specified thread now.
+     *
+     * @param	thread	the thread to wake.
+     * @return	<tt>true</tt> if the thread was in <tt>timedWait()</tt>.
+     */
+    public boolean wake(KThread thread) {
+        boolean intStatus = Machine.interrupt().disable();
+        Timeout timeout = thread.sleepTimeout;
+        boolean woken = timeout != null && timeout.wakeable && timeout.queued;
+        if (woken) {
+          remove(timeout);
+          thread.ready();
+        }
+        Machine.interrupt().restore(intStatus);
+        return woken;
+    }
 
-		@Override
-		public int compareTo(ThreadStatusHolder that) {
-			return Long.signum(wakeTime - that.wakeTime);
-		}
-}
+    /**
+     * Call <i>handler</i> once, <i>x</i> ticks from now, unless the returned
+     * timeout is cancelled first. The handler is called from the alarm
+     * interrupt, with interrupts disabled, so it must not block.
+     *
+     * @param	x	the number of clock ticks to wait.
+     * @param	handler	the callback to run.
+     * @return	a timeout that can be used to cancel the callback.
+     */
+    public Timeout setTimeout(long x, Runnable handler) {
+        boolean intStatus = Machine.interrupt().disable();
+        Timeout timeout = new Timeout();
+        timeout.handler = handler;
+        add(timeout, Machine.timer().getTime() + Math.max(x, 1));
+        Machine.interrupt().restore(intStatus);
+        return timeout;
+    }
+
+    /**
+     * Return the number of timeouts, including sleeping threads, that have
+     * not gone off yet.
+     *
+     * @return	the number of pending timeouts.
+     */
+    public int getNumPending() {
+        return numPending;
+    }
+
+    /**
+     * Tests whether this module is working: that sleeping threads wake up on
+     * time and in order, that a cancelled timeout never goes off, that
+     * timeouts more than a turn of the wheel away wait for their own turn,
+     * and that sleeping reuses the nodes on the free list.
+     */
+    public static void selfTest() {
+        final Alarm alarm = ThreadedKernel.alarm;
+        long turn = alarm.wheel.length * alarm.granularity;
+
+        System.out.println("Alarm test: wake-up times");
+
+        long[] delays = { 1, 7, alarm.granularity, 100, 1000, turn + 3 };
+        for (int i=0; i<delays.length; i++) {
+          long start = Machine.timer().getTime();
+          alarm.waitUntil(delays[i]);
+          long slept = Machine.timer().getTime() - start;
+          System.out.println("waitUntil(" + delays[i] + ") slept " + slept);
+          checkLate(slept, delays[i], alarm);
+        }
+
+        //Threads dormidos en orden inverso deben despertar en orden
+        final StringBuffer order = new StringBuffer();
+        KThread[] sleepers = new KThread[4];
+        for (int i=0; i<sleepers.length; i++) {
+          final int n = i;
+          sleepers[i] = new KThread(new Runnable() {
+            public void run() {
+              alarm.waitUntil(1000 - 200*n);
+              order.append(n);
+            }
+          }).setName("sleeper " + n);
+        }
+        for (int i=0; i<sleepers.length; i++)
+          sleepers[i].fork();
+        for (int i=0; i<sleepers.length; i++)
+          sleepers[i].join();
+        System.out.println("wake order: " + order);
+        Lib.assertTrue(order.toString().equals("3210"));
+
+        System.out.println("Alarm test: cancelled timeouts");
+
+        final long[] fired = new long[3];
+        Timeout cancelled = alarm.setTimeout(50, new Runnable() {
+          public void run() { fired[0] = Machine.timer().getTime(); }
+        });
+        Timeout kept = alarm.setTimeout(50, new Runnable() {
+          public void run() { fired[1] = Machine.timer().getTime(); }
+        });
+        Lib.assertTrue(cancelled.cancel());
+        Lib.assertTrue(!cancelled.cancel());
+        alarm.waitUntil(200);
+        Lib.assertTrue(fired[0] == 0);
+        Lib.assertTrue(fired[1] != 0);
+        Lib.assertTrue(!kept.cancel());
+
+        System.out.println("Alarm test: wrap-around");
+
+        //Dos timeouts en la misma cubeta, a dos vueltas de distancia
+        boolean intStatus = Machine.interrupt().disable();
+        long start = Machine.timer().getTime();
+        Timeout near = alarm.setTimeout(300, new Runnable() {
+          public void run() { fired[0] = Machine.timer().getTime(); }
+        });
+        Timeout far = alarm.setTimeout(300 + 2*turn, new Runnable() {
+          public void run() { fired[2] = Machine.timer().getTime(); }
+        });
+        Machine.interrupt().restore(intStatus);
+        Lib.assertTrue(near.slot == far.slot);
+
+        alarm.waitUntil(300 + turn);
+        Lib.assertTrue(fired[0] != 0 && fired[2] == 0);
+        checkLate(fired[0] - start, 300, alarm);
+
+        alarm.waitUntil(turn + 100);
+        System.out.println("timeout " + (300 + 2*turn) + " ticks away went off after " +
+                           (fired[2] - start));
+        Lib.assertTrue(fired[2] != 0);
+        checkLate(fired[2] - start, 300 + 2*turn, alarm);
+
+        System.out.println("Alarm test: free list reuse");
+
+        //Despues de dormir tres threads a la vez, la lista no debe crecer mas
+        for (int round=0; round<2; round++) {
+          KThread[] threads = new KThread[3];
+          for (int i=0; i<threads.length; i++) {
+            threads[i] = new KThread(new Runnable() {
+              public void run() { alarm.waitUntil(500); }
+            }).setName("free list " + i);
+            threads[i].fork();
+          }
+          for (int i=0; i<threads.length; i++)
+            threads[i].join();
+
+          int free = 0;
+          for (Timeout t=alarm.freeList; t!=null; t=t.next)
+            free++;
+          System.out.println("free nodes after round " + round + ": " + free);
+          Lib.assertTrue(free >= 3 && free <= 4);
+        }
+
+        Timeout head = alarm.freeList;
+        alarm.waitUntil(10);
+        Lib.assertTrue(alarm.freeList == head);
+    }
+
+    /**
+     * Check that something that was due <i>delay</i> ticks after it was set
+     * happened no sooner, and within a slot of the wheel and a few kernel
+     * ticks after.
+     */
+    private static void checkLate(long elapsed, long delay, Alarm alarm) {
+        Lib.assertTrue(elapsed >= delay);
+        Lib.assertTrue(elapsed < delay + alarm.granularity + 5*Stats.KernelTick);
+    }
+
+    /**
+     * A callback scheduled with <tt>setTimeout()</tt>, or a sleeping thread,
+     * linked into its slot of the timing wheel.
+     */
+    public class Timeout {
+        Timeout() {
+        }
+
+        /**
+         * Cancel this timeout, if it has not gone off yet.
+         *
+         * @return	<tt>true</tt> if the timeout was cancelled before its
+         *		handler ran.
+         */
+        public boolean cancel() {
+          boolean intStatus = Machine.interrupt().disable();
+          boolean cancelled = queued;
+          if (cancelled)
+            remove(this);
+          Machine.interrupt().restore(intStatus);
+          return cancelled;
+        }
+
+        /**
+         * Return the time at which this timeout goes off.
+         *
+         * @return	the wake time, in clock ticks.
+         */
+        public long getWakeTime() {
+          return wakeTime;
+        }
+
+        private long wakeTime;
+        private Runnable handler = null;
+        //Thread dormido en este timeout, si no es un callback
+        private KThread thread = null;
+        private boolean wakeable = false;
+        private boolean timedOut = false;
+
+        private boolean queued = false;
+        private int slot;
+        private Timeout prev = null, next = null;
+    }
+
+    /**
+     * Put the current thread to sleep until the specified time. Interrupts
+     * must be disabled. The node used for the sleep comes from a free list,
+     * so sleeping does not allocate once the list has grown.
+     *
+     * @return	<tt>true</tt> if the thread slept until the time.
+     */
+    private boolean sleepUntil(long wakeTime, boolean wakeable) {
+        KThread thread = KThread.currentThread();
+
+        Timeout timeout = freeList;
+        if (timeout != null)
+          freeList = timeout.next;
+        else
+          timeout = new Timeout();
+
+        timeout.thread = thread;
+        timeout.wakeable = wakeable;
+        timeout.timedOut = false;
+        add(timeout, wakeTime);
+
+        thread.sleepTimeout = timeout;
+        KThread.sleep();
+        thread.sleepTimeout = null;
+
+        boolean timedOut = timeout.timedOut;
+        timeout.thread = null;
+        timeout.next = freeList;
+        freeList = timeout;
+        return timedOut;
+    }
+
+    /**
+     * Link a timeout into the slot for its wake time, and bring the one-shot
+     * alarm forward if this slot comes before the one it is set for.
+     */
+    private void add(Timeout timeout, long wakeTime) {
+        Lib.assertTrue(!timeout.queued);
+
+        // round up, so the slot's time is never before the wake time
+        long tick = (wakeTime + granularity - 1) / granularity;
+        int slot = (int) (tick & (wheel.length - 1));
+
+        timeout.wakeTime = wakeTime;
+        timeout.slot = slot;
+        timeout.prev = null;
+        timeout.next = wheel[slot];
+        if (wheel[slot] != null)
+          wheel[slot].prev = timeout;
+        wheel[slot] = timeout;
+        occupied[slot >> 6] |= 1L << slot;
+        timeout.queued = true;
+
+        numPending++;
+        Machine.timer().recordTimeoutSet(numPending);
+
+        if (tick < alarmTick) {
+          alarmTick = tick;
+          Machine.timer().setAlarm(tick * granularity);
+        }
+    }
+
+    private void remove(Timeout timeout) {
+        Lib.assertTrue(timeout.queued);
+
+        int slot = timeout.slot;
+        if (timeout.prev == null)
+          wheel[slot] = timeout.next;
+        else
+          timeout.prev.next = timeout.next;
+        if (timeout.next != null)
+          timeout.next.prev = timeout.prev;
+        if (wheel[slot] == null)
+          occupied[slot >> 6] &= ~(1L << slot);
+
+        timeout.prev = timeout.next = null;
+        timeout.queued = false;
+        numPending--;
+    }
+
+    /**
+     * Run every timeout that is due, visiting each slot that time has passed
+     * since the last call once, and set the alarm for the next occupied
+     * slot.
+     */
+    private void expireTimeouts() {
+      long time = Machine.timer().getTime();
+      long target = time / granularity;
+
+      int expired = 0;
+      //Si paso una vuelta entera de la rueda, basta visitar cada cubeta una vez
+      long first = Math.max(cursor + 1, target - wheel.length + 1);
+      for (long tick = first; tick <= target; tick++) {
+        int slot = (int) (tick & (wheel.length - 1));
+        if ((occupied[slot >> 6] & (1L << slot)) == 0)
+          continue;
+
+        Timeout timeout = wheel[slot];
+        while (timeout != null) {
+          Timeout next = timeout.next;
+          if (timeout.wakeTime <= time) {
+            remove(timeout);
+            expire(timeout);
+            expired++;
+            //El handler pudo haber cancelado el siguiente
+            if (next != null && !next.queued)
+              next = wheel[slot];
+          }
+          timeout = next;
+        }
+      }
+      cursor = Math.max(cursor, target);
+
+      if (expired > 0)
+        Machine.timer().recordTimeoutsExpired(expired);
+
+      armAlarm();
+    }
+
+    private void expire(Timeout timeout) {
+      if (timeout.thread != null) {
+        timeout.timedOut = true;
+        timeout.thread.ready();
+      }
+      else
+        timeout.handler.run();
+    }
+
+    /**
+     * Set the alarm for the first occupied slot after the cursor. A slot may
+     * only hold timeouts for later turns of the wheel, in which case the
+     * alarm goes off early and is simply set again.
+     */
+    private void armAlarm() {
+      if (numPending == 0) {
+        alarmTick = Long.MAX_VALUE;
+        Machine.timer().cancelAlarm();
+        return;
+      }
+
+      int mask = wheel.length - 1;
+      int start = (int) ((cursor + 1) & mask);
+      int distance = 0;
+      while (distance < wheel.length) {
+        int slot = (start + distance) & mask;
+        long bits = occupied[slot >> 6] >>> (slot & 63);
+        if (bits != 0) {
+          distance += Long.numberOfTrailingZeros(bits);
+          break;
+        }
+        distance += 64 - (slot & 63);
+      }
+
+      alarmTick = cursor + 1 + distance;
+      Machine.timer().setAlarm(alarmTick * granularity);
+    }
 
+    private long granularity;
+    private Timeout[] wheel;
+    //Bit n encendido si la cubeta n no esta vacia
+    private long[] occupied;
+    //Ultimo tick de la rueda cuyos timeouts ya se procesaron
+    private long cursor;
+    //Tick de la rueda para el que esta puesta la alarma
+    private long alarmTick = Long.MAX_VALUE;
+    private int numPending = 0;
+    //Nodos de threads que ya despertaron, para reusarlos
+    private Timeout freeList = null;
 }
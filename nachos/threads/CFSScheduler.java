@@ -0,0 +1,392 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Comparator;
+import java.util.TreeSet;
+
+/**
+ * A completely fair scheduler, which gives each thread a share of the CPU in
+ * proportion to its weight.
+ *
+ * <p>
+ * Every thread has a <i>virtual runtime</i>: the simulated time it has spent
+ * on the CPU, scaled down by its weight. Time is charged to a thread at every
+ * context switch, and whenever the thread gives up the CPU. The waiting
+ * thread with the smallest virtual runtime is always dequeued next, so the
+ * thread that is furthest behind its fair share runs first. Waiters are kept
+ * in a red-black tree (a <tt>TreeSet</tt>) ordered by virtual runtime, so
+ * every operation takes O(log n) time.
+ *
+ * <p>
+ * Weights come from the usual priorities, between <tt>priorityMinimum</tt>
+ * and <tt>priorityMaximum</tt>. Each priority gets 25% more CPU than the
+ * priority below it. Priority is donated through locks and joins as with a
+ * priority scheduler: a thread holding a lock runs with the weight of the
+ * highest priority waiting for it.
+ *
+ * <p>
+ * The timer interrupt only preempts the current thread once it has run for
+ * at least <tt>CFSScheduler.minGranularity</tt> ticks, and only if a ready
+ * thread is behind it. A thread that wakes up after sleeping is placed no
+ * more than <tt>CFSScheduler.latency</tt>/2 ticks behind the ready thread
+ * that is furthest behind, so it runs soon without being able to hog the CPU
+ * to make up for the time it slept.
+ */
+public class CFSScheduler extends PriorityScheduler {
+    /**
+     * Allocate a new CFS scheduler.
+     */
+    public CFSScheduler() {
+	latency = Config.getInteger("CFSScheduler.latency",
+				    Stats.TimerTicks * 4);
+	minGranularity = Config.getInteger("CFSScheduler.minGranularity",
+					   Stats.TimerTicks);
+	Lib.assertTrue(latency >= 0 && minGranularity >= 0);
+    }
+
+    /**
+     * Allocate a new CFS thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer priority from waiting threads
+     *					to the owning thread.
+     * @return	a new CFS thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new CFSQueue(transferPriority);
+    }
+
+    public ThreadQueue newReadyQueue() {
+	readyQueue = new CFSQueue(false);
+	return readyQueue;
+    }
+
+    /**
+     * Return the total simulated time the specified thread has spent on the
+     * CPU, up to its last context switch.
+     *
+     * @param	thread	the thread whose runtime to return.
+     * @return	the thread's runtime, in ticks.
+     */
+    public long getRuntime(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getCFSState(thread).runtime;
+    }
+
+    /**
+     * Return the virtual runtime of the specified thread: its runtime, scaled
+     * by the weight of the default priority over the weights it ran with.
+     *
+     * @param	thread	the thread whose virtual runtime to return.
+     * @return	the thread's virtual runtime.
+     */
+    public long getVirtualRuntime(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getCFSState(thread).vruntime;
+    }
+
+    public void threadSwitched(KThread previous, KThread next) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+
+	getCFSState(previous).charge(time);
+
+	CFSState state = getCFSState(next);
+	state.lastCharge = time;
+	state.dispatchTime = time;
+    }
+
+    public boolean shouldPreempt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+
+	CFSState current = getCFSState(KThread.currentThread());
+	current.charge(time);
+
+	if (time - current.dispatchTime < minGranularity)
+	    return false;
+
+	CFSState next = (readyQueue == null) ? null : readyQueue.pickNextThread();
+	return next != null && next.vruntime < current.vruntime;
+    }
+
+    /**
+     * A thread that wakes up preempts the current thread if it is more than
+     * <tt>minGranularity</tt> behind it.
+     */
+    public boolean shouldPreemptOnWake() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	CFSState current = getCFSState(KThread.currentThread());
+	current.charge(Machine.timer().getTime());
+
+	CFSState next = (readyQueue == null) ? null : readyQueue.pickNextThread();
+	return next != null && next.vruntime + minGranularity < current.vruntime;
+    }
+
+    /**
+     * Test that CPU-bound threads share the CPU in proportion to their
+     * weights. Three threads, at priorities 1, 4 and 7 (weights 1024, 2000
+     * and 3906), spin for the same stretch of time, and each must get within
+     * 10% of its weighted share of the time they ran. The kernel must be
+     * using a CFS scheduler.
+     */
+    public static void selfTest() {
+	Lib.assertTrue(ThreadedKernel.scheduler instanceof CFSScheduler);
+	CFSScheduler scheduler = (CFSScheduler) ThreadedKernel.scheduler;
+
+	System.out.println("CFSScheduler test: weighted shares");
+
+	final long end = Machine.timer().getTime() + 200000;
+	Runnable spin = new Runnable() {
+		public void run() {
+		    while (Machine.timer().getTime() < end) {
+			Machine.interrupt().disable();
+			Machine.interrupt().enable();
+		    }
+		}
+	    };
+
+	int[] priorities = { 1, 4, 7 };
+	KThread[] threads = new KThread[priorities.length];
+
+	boolean intStatus = Machine.interrupt().disable();
+	for (int i=0; i<threads.length; i++) {
+	    threads[i] = new KThread(spin).setName("cfs " + priorities[i]);
+	    scheduler.setPriority(threads[i], priorities[i]);
+	}
+	Machine.interrupt().restore(intStatus);
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].fork();
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+
+	intStatus = Machine.interrupt().disable();
+
+	long totalRuntime = 0, totalWeight = 0;
+	for (int i=0; i<threads.length; i++) {
+	    totalRuntime += scheduler.getRuntime(threads[i]);
+	    totalWeight += weights[priorities[i]];
+	}
+
+	for (int i=0; i<threads.length; i++) {
+	    long runtime = scheduler.getRuntime(threads[i]);
+	    double share = (double) weights[priorities[i]] / totalWeight;
+	    double got = (double) runtime / totalRuntime;
+
+	    System.out.println(threads[i] + " runtime: " + runtime +
+			       " share: " + got + " (expected " + share + ")");
+	    Lib.assertTrue(Math.abs(got - share) < share * 0.1);
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * The weight of each priority: 1024 for <tt>priorityDefault</tt>, and
+     * 25% more for each priority above it.
+     */
+    protected static final int[] weights = {
+	819, 1024, 1280, 1600, 2000, 2500, 3125, 3906
+    };
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new CFSState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    protected CFSState getCFSState(KThread thread) {
+	return (CFSState) getThreadState(thread);
+    }
+
+    /**
+     * A <tt>PriorityQueue</tt> that dequeues the waiting thread with the
+     * smallest virtual runtime, breaking ties in the order the threads
+     * arrived. Priority donation is inherited from <tt>PriorityQueue</tt>;
+     * only the order the waiters are kept in differs.
+     */
+    protected class CFSQueue extends PriorityQueue {
+	CFSQueue(boolean transferPriority) {
+	    super(transferPriority);
+	}
+
+	/**
+	 * Add a thread to this queue. If the thread is the current thread it
+	 * is giving up the CPU, and is charged for the time it has run.
+	 * Otherwise it has just been woken up (or forked), and is placed
+	 * relative to the threads already waiting.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    CFSState state = getCFSState(thread);
+
+	    if (thread == KThread.currentThread())
+		state.charge(Machine.timer().getTime());
+	    else if (state.dispatchTime < 0)
+		state.vruntime = Math.max(state.vruntime, minVruntime);
+	    else
+		state.vruntime = Math.max(state.vruntime,
+					  minVruntime - latency/2);
+
+	    state.arrival = numArrivals++;
+
+	    super.waitForAccess(thread);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    CFSState next = pickNextThread();
+	    if (next != null)
+		minVruntime = Math.max(minVruntime, next.vruntime);
+
+	    return super.nextThread();
+	}
+
+	/**
+	 * Return the thread that <tt>nextThread()</tt> would return, without
+	 * modifying the state of this queue.
+	 *
+	 * @return	the waiting thread with the smallest virtual runtime, or
+	 *		<tt>null</tt> if none are waiting.
+	 */
+	protected CFSState pickNextThread() {
+	    return waiting.isEmpty() ? null : waiting.first();
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (CFSState state : waiting)
+		System.out.println(state.thread + " vruntime: " +
+				   state.vruntime + " priority: " +
+				   state.effectivePriority);
+	}
+
+	/**
+	 * Add a thread to the tree, and count it at its effective priority,
+	 * keeping the bit for that priority in <tt>occupied</tt> set so that
+	 * the donated priority is still the highest one set.
+	 */
+	protected void enqueue(ThreadState ts) {
+	    Lib.assertTrue(ts.queuedOn == null);
+
+	    CFSState state = (CFSState) ts;
+	    waiting.add(state);
+	    state.queuedOn = this;
+	    state.queuedPriority = state.effectivePriority;
+	    if (waitingAt[state.queuedPriority]++ == 0)
+		occupied |= 1 << state.queuedPriority;
+	}
+
+	protected void dequeue(ThreadState ts) {
+	    Lib.assertTrue(ts.queuedOn == this);
+
+	    CFSState state = (CFSState) ts;
+	    waiting.remove(state);
+	    state.queuedOn = null;
+	    if (--waitingAt[state.queuedPriority] == 0)
+		occupied &= ~(1 << state.queuedPriority);
+	}
+
+	private TreeSet<CFSState> waiting = new TreeSet<CFSState>(byVruntime);
+	/** The number of waiters at each effective priority. */
+	private int[] waitingAt = new int[priorityMaximum + 1];
+	/** The largest virtual runtime of any thread dequeued so far. */
+	private long minVruntime = 0;
+	private long numArrivals = 0;
+    }
+
+    /**
+     * The scheduling state of a thread under CFS scheduling: its priority
+     * state, plus its runtime and virtual runtime.
+     */
+    protected class CFSState extends ThreadState {
+	/**
+	 * Allocate a new <tt>CFSState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public CFSState(KThread thread) {
+	    super(thread);
+	}
+
+	/**
+	 * Charge this thread for the time it has run since it was last
+	 * charged, at the weight of its current effective priority. A thread
+	 * that is already waiting in a queue is taken out of the queue's tree
+	 * while its virtual runtime changes, and put back in its new place.
+	 *
+	 * @param	time	the current time.
+	 */
+	void charge(long time) {
+	    long delta = time - lastCharge;
+	    lastCharge = time;
+	    if (delta == 0)
+		return;
+
+	    CFSQueue queue = (CFSQueue) queuedOn;
+	    if (queue != null)
+		queue.dequeue(this);
+
+	    runtime += delta;
+	    vruntime += delta * weights[priorityDefault] /
+		weights[effectivePriority];
+
+	    if (queue != null)
+		queue.enqueue(this);
+	}
+
+	/**
+	 * If this is the current thread, charge the time it has run so far
+	 * at its old weight.
+	 */
+	protected void effectivePriorityChanging() {
+	    if (thread == KThread.currentThread())
+		charge(Machine.timer().getTime());
+	}
+
+	/** The total time this thread has run. */
+	protected long runtime = 0;
+	/** The weighted time this thread has run. */
+	protected long vruntime = 0;
+	/** When this thread was last charged for the time it has run. */
+	protected long lastCharge = 0;
+	/** When this thread was last dispatched, or -1 if it never was. */
+	protected long dispatchTime = -1;
+
+	protected long arrival;
+    }
+
+    private final Comparator<CFSState> byVruntime = new Comparator<CFSState>() {
+	public int compare(CFSState a, CFSState b) {
+	    if (a.vruntime != b.vruntime)
+		return (a.vruntime < b.vruntime) ? -1 : 1;
+	    if (a.arrival != b.arrival)
+		return (a.arrival < b.arrival) ? -1 : 1;
+	    return 0;
+	}
+    };
+
+    private long latency;
+    private long minGranularity;
+
+    /** The ready queue, used to decide whether to preempt. */
+    private CFSQueue readyQueue = null;
+}
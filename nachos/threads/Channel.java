@@ -0,0 +1,328 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>channel</i> lets kernel threads stream 32-bit words to each other. It
+ * is like a <tt>Communicator</tt>, except that the words pass through a ring
+ * buffer of a fixed capacity, so a sender only blocks when the buffer is
+ * full and a receiver only blocks when it is empty, and whole arrays can be
+ * sent or received at once with <tt>sendAll()</tt> and
+ * <tt>receiveAll()</tt>. A thread that sends a batch sleeps and wakes at
+ * most once per buffer's worth of words, instead of once per word.
+ *
+ * <p>
+ * A channel with a capacity of zero has no buffer, and keeps the rendezvous
+ * semantics of <tt>Communicator</tt>: a send does not return until receivers
+ * have taken every word it sent. Receivers copy a batch straight out of the
+ * sender's array.
+ *
+ * <p>
+ * The words of one send are received in order, but if several threads send
+ * batches larger than the free space at the same time, their words may be
+ * interleaved.
+ *
+ * @see	nachos.threads.Communicator
+ */
+public class Channel {
+    /**
+     * Allocate a new channel, with the capacity given by the
+     * <tt>Channel.capacity</tt> configuration key (16 words by default).
+     */
+    public Channel() {
+	this(Config.getInteger("Channel.capacity", 16));
+    }
+
+    /**
+     * Allocate a new channel.
+     *
+     * @param	capacity	the number of words the channel can hold
+     *				before a sender blocks, or zero for a
+     *				rendezvous channel.
+     */
+    public Channel(int capacity) {
+	Lib.assertTrue(capacity >= 0);
+
+	buffer = new int[capacity];
+	lock = new Lock();
+	notEmpty = new Condition2(lock);
+	notFull = new Condition2(lock);
+	delivered = new Condition2(lock);
+    }
+
+    /**
+     * Return the number of words this channel can hold.
+     *
+     * @return	the capacity of this channel, or zero if it is a rendezvous
+     *		channel.
+     */
+    public int getCapacity() {
+	return buffer.length;
+    }
+
+    /**
+     * Send a word through this channel, waiting for free space in the buffer
+     * (or, for a rendezvous channel, for a receiver to take the word).
+     *
+     * @param	word	the word to send.
+     */
+    public void send(int word) {
+	lock.acquire();
+
+	if (buffer.length == 0) {
+	    offerWord = word;
+	    offer(null, 0, 1);
+	}
+	else {
+	    while (count == buffer.length)
+		notFull.sleep();
+
+	    buffer[(head + count) % buffer.length] = word;
+	    count++;
+	    wakeAfterSend();
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Receive a word from this channel, waiting for one to be sent if
+     * necessary.
+     *
+     * @return	the word received.
+     */
+    public int receive() {
+	int word;
+
+	lock.acquire();
+
+	if (buffer.length == 0) {
+	    waitForOffer();
+	    word = (offerArray == null) ? offerWord : offerArray[offerPos];
+	    offerPos++;
+	    wakeAfterTake();
+	}
+	else {
+	    while (count == 0)
+		notEmpty.sleep();
+
+	    word = buffer[head];
+	    head = (head + 1) % buffer.length;
+	    count--;
+	    wakeAfterReceive();
+	}
+
+	lock.release();
+	return word;
+    }
+
+    /**
+     * Send every word in the specified array, in order. Returns once they
+     * are all in the buffer (or, for a rendezvous channel, once receivers
+     * have taken them all).
+     *
+     * @param	words	the words to send.
+     */
+    public void sendAll(int[] words) {
+	lock.acquire();
+
+	if (buffer.length == 0) {
+	    if (words.length > 0)
+		offer(words, 0, words.length);
+	}
+	else {
+	    int pos = 0;
+	    while (pos < words.length) {
+		while (count == buffer.length)
+		    notFull.sleep();
+
+		int amount = Math.min(words.length - pos,
+				      buffer.length - count);
+		int tail = (head + count) % buffer.length;
+		int first = Math.min(amount, buffer.length - tail);
+
+		System.arraycopy(words, pos, buffer, tail, first);
+		System.arraycopy(words, pos + first, buffer, 0, amount - first);
+
+		count += amount;
+		pos += amount;
+		wakeAfterSend();
+	    }
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Fill the specified array with words received from this channel,
+     * waiting for them to be sent if necessary.
+     *
+     * @param	words	the array to fill.
+     */
+    public void receiveAll(int[] words) {
+	lock.acquire();
+
+	int pos = 0;
+	while (pos < words.length) {
+	    if (buffer.length == 0) {
+		waitForOffer();
+
+		int amount = Math.min(words.length - pos, offerEnd - offerPos);
+		if (offerArray == null)
+		    words[pos] = offerWord;
+		else
+		    System.arraycopy(offerArray, offerPos, words, pos, amount);
+
+		offerPos += amount;
+		pos += amount;
+		wakeAfterTake();
+	    }
+	    else {
+		while (count == 0)
+		    notEmpty.sleep();
+
+		int amount = Math.min(words.length - pos, count);
+		int first = Math.min(amount, buffer.length - head);
+
+		System.arraycopy(buffer, head, words, pos, first);
+		System.arraycopy(buffer, 0, words, pos + first, amount - first);
+
+		head = (head + amount) % buffer.length;
+		count -= amount;
+		pos += amount;
+		wakeAfterReceive();
+	    }
+	}
+
+	lock.release();
+    }
+
+    /**
+     * Wake a receiver for the words just added to the buffer, and another
+     * sender if there is still free space.
+     */
+    private void wakeAfterSend() {
+	notEmpty.wake();
+	if (count < buffer.length)
+	    notFull.wake();
+    }
+
+    /**
+     * Wake a sender for the space just freed in the buffer, and another
+     * receiver if there are still words left.
+     */
+    private void wakeAfterReceive() {
+	notFull.wake();
+	if (count > 0)
+	    notEmpty.wake();
+    }
+
+    /**
+     * Offer words to the receivers of a rendezvous channel, and wait until
+     * they have all been taken. Only one sender offers at a time. If
+     * <i>words</i> is <tt>null</tt>, the single word offered is
+     * <tt>offerWord</tt>.
+     */
+    private void offer(int[] words, int pos, int end) {
+	while (offering)
+	    notFull.sleep();
+
+	offering = true;
+	offerArray = words;
+	offerPos = pos;
+	offerEnd = end;
+	notEmpty.wake();
+
+	while (offerPos < offerEnd)
+	    delivered.sleep();
+
+	offering = false;
+	offerArray = null;
+	notFull.wake();
+    }
+
+    private void waitForOffer() {
+	while (!offering || offerPos == offerEnd)
+	    notEmpty.sleep();
+    }
+
+    /**
+     * Wake the offering sender if its words have all been taken, or else
+     * another receiver to take the rest.
+     */
+    private void wakeAfterTake() {
+	if (offerPos == offerEnd)
+	    delivered.wake();
+	else
+	    notEmpty.wake();
+    }
+
+    private static class PipeTest implements Runnable {
+	PipeTest(Channel in, Channel out) {
+	    this.in = in;
+	    this.out = out;
+	}
+
+	public void run() {
+	    int[] batch = new int[5];
+	    for (int i=0; i<100; i+=5) {
+		in.receiveAll(batch);
+		out.sendAll(batch);
+	    }
+	}
+
+	private Channel in;
+	private Channel out;
+    }
+
+    private static class SourceTest implements Runnable {
+	SourceTest(Channel out) {
+	    this.out = out;
+	}
+
+	public void run() {
+	    int[] batch = new int[20];
+	    for (int i=0; i<100; i+=20) {
+		for (int j=0; j<20; j++)
+		    batch[j] = i+j;
+		out.sendAll(batch);
+	    }
+	}
+
+	private Channel out;
+    }
+
+    private static void selfTest(int capacity) {
+	Channel in = new Channel(capacity);
+	Channel out = new Channel(capacity);
+
+	new KThread(new SourceTest(in)).setName("source").fork();
+	new KThread(new PipeTest(in, out)).setName("pipe").fork();
+
+	for (int i=0; i<100; i++)
+	    Lib.assertTrue(out.receive() == i);
+    }
+
+    /**
+     * Test that this module is working.
+     */
+    public static void selfTest() {
+	selfTest(0);
+	selfTest(7);
+	selfTest(64);
+    }
+
+    private int[] buffer;
+    private int head = 0, count = 0;
+
+    /** The words a sender is offering on a rendezvous channel. */
+    private boolean offering = false;
+    private int[] offerArray = null;
+    private int offerWord;
+    private int offerPos, offerEnd;
+
+    private Lock lock;
+    private Condition2 notEmpty;
+    private Condition2 notFull;
+    private Condition2 delivered;
+}
@@ -1,5 +1,4 @@
 package nachos.threads;
-import java.util.LinkedList;
 import nachos.machine.*;
 
 /**
@@ -7,7 +6,10 @@ import nachos.machine.*;
  * synchronization.
  *
  * <p>
- * You must implement this.
+ * The sleeping threads are linked directly through their
+ * <tt>nextWaiter</tt> field, in the order they went to sleep, so sleeping
+ * and waking never allocate, and <tt>wakeAll()</tt> takes time proportional
+ * to the number of sleeping threads.
  *
  * @see	nachos.threads.Condition
  */
@@ -28,13 +30,19 @@ public class Condition2 {
      * Atomically release the associated lock and go to sleep on this condition
      * variable until another thread wakes it using <tt>wake()</tt>. The
      * current thread must hold the associated lock. The thread will
-     * automatically reacquire the lock before <tt>sleep()</tt> returns.b
+     * automatically reacquire the lock before <tt>sleep()</tt> returns.
      */
     public void sleep() {
 	     Lib.assertTrue(conditionLock.isHeldByCurrentThread());
        boolean intStatus = Machine.interrupt().disable();
-       //System.out.println("Going to sleep: " + KThread.currentThread().getName());
-  		 waitQueue.add(KThread.currentThread());
+       KThread thread = KThread.currentThread();
+       //Encola el thread al final de la lista, sin crear nodos
+       thread.nextWaiter = null;
+       if (last == null)
+         first = thread;
+       else
+         last.nextWaiter = thread;
+       last = thread;
        //Deshabilito candado del condition variable para meter el thread que hizo sleep a esa waitqueue
        conditionLock.release();
        KThread.sleep();
@@ -49,9 +57,13 @@ public class Condition2 {
     public void wake() {
     	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
       boolean intStatus = Machine.interrupt().disable();
-      if (!waitQueue.isEmpty()){
-        //System.out.println("Waking up: " + KThread.currentThread().getName());
-        waitQueue.removeFirst().ready();
+      KThread thread = first;
+      if (thread != null){
+        first = thread.nextWaiter;
+        if (first == null)
+          last = null;
+        thread.nextWaiter = null;
+        thread.ready();
       }
       Machine.interrupt().restore(intStatus);
     }
@@ -62,12 +74,21 @@ public class Condition2 {
      */
     public void wakeAll() {
 	       Lib.assertTrue(conditionLock.isHeldByCurrentThread());
-         while (!waitQueue.isEmpty()){
-           //Mientras el waitQueue tenga elementos, despertarlos
-           wake();
-        }
+         boolean intStatus = Machine.interrupt().disable();
+         //Separa la lista completa y la recorre una sola vez
+         KThread thread = first;
+         first = last = null;
+         while (thread != null){
+           KThread next = thread.nextWaiter;
+           thread.nextWaiter = null;
+           thread.ready();
+           thread = next;
+         }
+         Machine.interrupt().restore(intStatus);
     }
 
     private Lock conditionLock;
-    private LinkedList<KThread> waitQueue = new LinkedList<KThread>();
+    //Primer y ultimo thread dormidos, enlazados por KThread.nextWaiter
+    private KThread first = null;
+    private KThread last = null;
 }
@@ -0,0 +1,195 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * The ready queue of the real-time scheduling class. Real-time threads that
+ * are ready to run, and have budget left in their current period, wait here
+ * instead of in the scheduler's ready queue, and are dequeued in order of
+ * their absolute deadlines (earliest deadline first). <tt>KThread</tt> always
+ * tries this queue before the scheduler's ready queue.
+ *
+ * <p>
+ * The waiting threads are kept in a binary min-heap, so every operation takes
+ * O(log n) time.
+ *
+ * @see	nachos.threads.KThread#setRealTime
+ */
+public class EDFQueue extends ThreadQueue {
+    /**
+     * Allocate a new EDF queue.
+     */
+    public EDFQueue() {
+    }
+
+    public void waitForAccess(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(thread.realTime != null);
+
+	if (size == heap.length) {
+	    KThread[] newHeap = new KThread[Math.max(2*size, 4)];
+	    System.arraycopy(heap, 0, newHeap, 0, size);
+	    heap = newHeap;
+	}
+
+	heap[size] = thread;
+	siftUp(size++);
+    }
+
+    public KThread nextThread() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	if (size == 0)
+	    return null;
+
+	KThread thread = heap[0];
+	heap[0] = heap[--size];
+	heap[size] = null;
+	if (size > 0)
+	    siftDown(0);
+
+	return thread;
+    }
+
+    /**
+     * Return the thread that <tt>nextThread()</tt> would return, without
+     * modifying the state of this queue.
+     *
+     * @return	the waiting thread with the earliest deadline, or
+     *		<tt>null</tt> if none are waiting.
+     */
+    public KThread peek() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return (size == 0) ? null : heap[0];
+    }
+
+    public void acquire(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+    }
+
+    public void print() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	for (int i=0; i<size; i++)
+	    System.out.println(heap[i] + " deadline: " +
+			       heap[i].realTime.deadline);
+    }
+
+    /**
+     * Test admission control, and that jobs are counted as missing their
+     * deadlines exactly when they finish late. Assumes the default
+     * <tt>KThread.realTimeUtilization</tt> of 1, and that no other real-time
+     * threads are admitted.
+     */
+    public static void selfTest() {
+	System.out.println("EDFQueue test: admission control");
+
+	KThread a = new KThread().setName("edf a");
+	KThread b = new KThread().setName("edf b");
+	KThread c = new KThread().setName("edf c");
+
+	Lib.assertTrue(a.setRealTime(1000, 400, 1000));
+	Lib.assertTrue(b.setRealTime(1000, 500, 1000));
+	// 0.4 + 0.5 + 0.2 would overcommit the CPU
+	Lib.assertTrue(!c.setRealTime(1000, 200, 1000));
+	Lib.assertTrue(c.realTime == null);
+
+	// changing an admitted thread only counts its new utilization
+	Lib.assertTrue(b.setRealTime(2000, 1200, 2000));
+	Lib.assertTrue(!b.setRealTime(1000, 700, 1000));
+	Lib.assertTrue(b.realTime.relativeDeadline == 2000);
+
+	// clearing a thread gives its share back
+	a.clearRealTime();
+	Lib.assertTrue(c.setRealTime(1000, 400, 1000));
+	b.clearRealTime();
+	c.clearRealTime();
+
+	System.out.println("EDFQueue test: deadline misses");
+
+	final boolean[] done = new boolean[1];
+	final int[] misses = new int[1];
+
+	KThread hog = new KThread(new Runnable() {
+		public void run() {
+		    while (!done[0])
+			spin(100);
+		}
+	    }).setName("edf hog");
+
+	/* Jobs alternate between 200 ticks, which fit the budget and so run
+	 * ahead of the hog, and 1500 ticks, which cannot finish within the
+	 * 1000 tick deadline.
+	 */
+	KThread periodic = new KThread(new Runnable() {
+		public void run() {
+		    for (int job=0; job<6; job++) {
+			spin((job % 2 == 0) ? 200 : 1500);
+			if (!KThread.waitForNextPeriod())
+			    misses[0]++;
+		    }
+		    done[0] = true;
+		}
+	    }).setName("edf periodic");
+
+	Lib.assertTrue(periodic.setRealTime(4000, 500, 1000));
+
+	hog.fork();
+	periodic.fork();
+	periodic.join();
+	hog.join();
+
+	System.out.println("deadline misses: " + misses[0] + " of 6");
+	Lib.assertTrue(misses[0] == 3);
+    }
+
+    /**
+     * Use up the CPU for at least the specified number of ticks.
+     */
+    private static void spin(long ticks) {
+	long end = Machine.timer().getTime() + ticks;
+	while (Machine.timer().getTime() < end) {
+	    Machine.interrupt().disable();
+	    Machine.interrupt().enable();
+	}
+    }
+
+    private void siftUp(int i) {
+	KThread thread = heap[i];
+	while (i > 0) {
+	    int parent = (i-1)/2;
+	    if (!thread.realTime.before(heap[parent].realTime))
+		break;
+
+	    heap[i] = heap[parent];
+	    i = parent;
+	}
+
+	heap[i] = thread;
+    }
+
+    private void siftDown(int i) {
+	KThread thread = heap[i];
+	while (true) {
+	    int child = 2*i + 1;
+	    if (child >= size)
+		break;
+
+	    if (child+1 < size &&
+		heap[child+1].realTime.before(heap[child].realTime))
+		child++;
+
+	    if (!heap[child].realTime.before(thread.realTime))
+		break;
+
+	    heap[i] = heap[child];
+	    i = child;
+	}
+
+	heap[i] = thread;
+    }
+
+    private KThread[] heap = new KThread[0];
+    private int size = 0;
+}
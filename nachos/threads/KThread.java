@@ -48,8 +48,9 @@ public class KThread {
 	    tcb = new TCB();
 	}
 	else {
-	    readyQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+	    readyQueue = ThreadedKernel.scheduler.newReadyQueue();
 	    readyQueue.acquire(this);
+	    realTimeQueue = new EDFQueue();
 
 	    currentThread = this;
 	    tcb = TCB.currentTCB();
@@ -193,6 +194,9 @@ public class KThread {
       }
     }
 
+    if (currentThread.realTime != null)
+      currentThread.clearRealTime();
+
     Machine.autoGrader().finishingCurrentThread();
 
     Lib.assertTrue(toBeDestroyed == null);
@@ -266,8 +270,12 @@ public class KThread {
 	Lib.assertTrue(status != statusReady);
 
 	status = statusReady;
-	if (this != idleThread)
-	    readyQueue.waitForAccess(this);
+	if (this != idleThread) {
+	    if (realTime != null && realTime.hasBudget(this == currentThread))
+		realTimeQueue.waitForAccess(this);
+	    else
+		readyQueue.waitForAccess(this);
+	}
 
 	Machine.autoGrader().readyThread(this);
     }
@@ -311,8 +319,18 @@ public class KThread {
     private static void createIdleThread() {
 	Lib.assertTrue(idleThread == null);
 
+	ticklessIdle = Config.getBoolean("KThread.ticklessIdle", false);
+	realTimeBound = Config.getDouble("KThread.realTimeUtilization", 1.0);
+
 	idleThread = new KThread(new Runnable() {
-	    public void run() { while (true) yield(); }
+	    public void run() {
+		while (true) {
+		    if (ticklessIdle)
+			idle();
+		    else
+			KThread.yield();
+		}
+	    }
 	});
 	idleThread.setName("idle");
 
@@ -321,12 +339,49 @@ public class KThread {
 	idleThread.fork();
     }
 
+    /**
+     * Called by the idle thread in place of <tt>yield()</tt> when
+     * <tt>KThread.ticklessIdle</tt> is set. If another thread is ready it
+     * runs, as with <tt>yield()</tt>; otherwise the simulated time skips
+     * straight to the next pending interrupt instead of advancing one kernel
+     * tick per pass through the idle loop.
+     */
+    private static void idle() {
+	Lib.assertTrue(currentThread == idleThread);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	currentThread.ready();
+
+	KThread nextThread = nextReadyThread();
+	if (nextThread != null) {
+	    nextThread.run();
+	    Machine.interrupt().restore(intStatus);
+	}
+	else {
+	    idleThread.run();
+	    Machine.interrupt().idle();
+	}
+    }
+
+    /**
+     * Return the next thread to run: a ready real-time thread if there is
+     * one, otherwise whatever the scheduler's ready queue chooses.
+     */
+    private static KThread nextReadyThread() {
+	KThread nextThread = realTimeQueue.nextThread();
+	if (nextThread == null)
+	    nextThread = readyQueue.nextThread();
+
+	return nextThread;
+    }
+
     /**
      * Determine the next thread to run, then dispatch the CPU to the thread
      * using <tt>run()</tt>.
      */
     private static void runNextThread() {
-	KThread nextThread = readyQueue.nextThread();
+	KThread nextThread = nextReadyThread();
 	if (nextThread == null)
 	    nextThread = idleThread;
 
@@ -358,6 +413,14 @@ public class KThread {
 
 	Machine.yield();
 
+	ThreadedKernel.scheduler.threadSwitched(currentThread, this);
+
+	long time = Machine.timer().getTime();
+	if (currentThread.realTime != null)
+	    currentThread.realTime.charge(time);
+	if (realTime != null)
+	    realTime.lastCharge = time;
+
 	currentThread.saveState();
 
 	Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
@@ -516,8 +579,231 @@ private int which;
 
     }
 
+    /**
+     * Measure the host cost of a context switch. Two threads pass the CPU
+     * back and forth with <tt>yield()</tt> until they have switched
+     * <i>switches</i> times between them, and the elapsed wall time is
+     * printed. Run it with the <tt>TCB.handoff</tt> and
+     * <tt>TCB.spinCount</tt> keys set differently to compare handoffs.
+     *
+     * @param	switches	the number of context switches to time.
+     */
+    public static void yieldBenchmark(final int switches) {
+	Runnable pingPong = new Runnable() {
+		public void run() {
+		    for (int i=0; i<switches/2; i++)
+			KThread.yield();
+		}
+	    };
+
+	KThread ping = new KThread(pingPong).setName("ping");
+	KThread pong = new KThread(pingPong).setName("pong");
+
+	long start = System.nanoTime();
+
+	ping.fork();
+	pong.fork();
+	ping.join();
+	pong.join();
+
+	long elapsed = System.nanoTime() - start;
+
+	System.out.println("yield ping-pong: " + switches + " switches in "
+			   + elapsed/1000000 + " ms ("
+			   + elapsed/Math.max(switches, 1) + " ns/switch)");
+    }
+
     private static final char dbgThread = 't';
 
+    /**
+     * Make this thread a periodic real-time thread. Every <i>period</i> ticks
+     * it is released to run a job, which should take no more than
+     * <i>budget</i> ticks of CPU time, and should finish within
+     * <i>deadline</i> ticks of its release. The first job is released now,
+     * and the thread calls <tt>waitForNextPeriod()</tt> at the end of each
+     * job.
+     *
+     * <p>
+     * While a real-time thread has budget left in its current period, it is
+     * scheduled ahead of every other thread, earliest deadline first. Once
+     * its budget is used up it is scheduled like any other thread until its
+     * next release.
+     *
+     * <p>
+     * The set of real-time threads is only admitted if the sum of
+     * <i>budget</i>/<i>deadline</i> over all of them stays within
+     * <tt>KThread.realTimeUtilization</tt> (by default 1), which guarantees
+     * that EDF meets every deadline of jobs that stay within their budgets.
+     * This thread must not be on the ready queue.
+     *
+     * @param	period		the time between releases.
+     * @param	budget		the CPU time each job is allowed.
+     * @param	deadline	the time from a release by which the job must
+     *				finish, at most <i>period</i>.
+     * @return	<tt>true</tt> if the thread was admitted, or <tt>false</tt> if
+     *		admitting it would overcommit the CPU, in which case nothing
+     *		changes.
+     */
+    public boolean setRealTime(long period, long budget, long deadline) {
+	Lib.assertTrue(budget > 0 && budget <= deadline && deadline <= period);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(status != statusReady);
+
+	double utilization = (double) budget / deadline;
+	double oldUtilization =
+	    (realTime == null) ? 0 : realTime.utilization();
+	if (realTimeUtilization - oldUtilization + utilization >
+	    realTimeBound + 1e-9) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+	realTimeUtilization += utilization - oldUtilization;
+
+	long time = Machine.timer().getTime();
+
+	realTime = new RealTime(this, period, budget, deadline);
+	realTime.release = time;
+	realTime.deadline = time + deadline;
+	realTime.lastCharge = time;
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * Make this thread an ordinary thread again, giving up its share of the
+     * real-time utilization. This thread must not be on the ready queue.
+     */
+    public void clearRealTime() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(status != statusReady);
+
+	if (realTime != null) {
+	    realTimeUtilization -= realTime.utilization();
+	    realTime = null;
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Called by a real-time thread when it has finished its current job.
+     * Counts the job, and whether it missed its deadline, in the machine's
+     * statistics, and then sleeps until the next release. If the next
+     * release has already passed, returns immediately.
+     *
+     * @return	<tt>true</tt> if the job finished by its deadline.
+     */
+    public static boolean waitForNextPeriod() {
+	RealTime rt = currentThread.realTime;
+	Lib.assertTrue(rt != null);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	long time = Machine.timer().getTime();
+	rt.charge(time);
+
+	boolean metDeadline = (time <= rt.deadline);
+	Machine.timer().recordRealTimeJob(!metDeadline);
+
+	rt.release += rt.period;
+	rt.deadline = rt.release + rt.relativeDeadline;
+	rt.used = 0;
+
+	Machine.interrupt().restore(intStatus);
+
+	if (rt.release > time)
+	    ThreadedKernel.alarm.waitUntil(rt.release - time);
+
+	return metDeadline;
+    }
+
+    /**
+     * Decide whether an interrupt should preempt the current thread. A
+     * real-time thread with budget left is only preempted by a real-time
+     * thread with an earlier deadline; any other thread is preempted as
+     * soon as a real-time thread is ready, and otherwise when the scheduler
+     * says so.
+     *
+     * @param	wakeup	<tt>true</tt> if the interrupt has just woken up
+     *			threads, <tt>false</tt> for the periodic timer
+     *			interrupt.
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    static boolean shouldPreempt(boolean wakeup) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	RealTime rt = currentThread.realTime;
+	if (rt != null) {
+	    rt.charge(Machine.timer().getTime());
+	    if (!rt.hasBudget(true))
+		return true;
+
+	    KThread next = realTimeQueue.peek();
+	    return next != null && next.realTime.before(rt);
+	}
+
+	if (realTimeQueue.peek() != null)
+	    return true;
+
+	if (wakeup)
+	    return ThreadedKernel.scheduler.shouldPreemptOnWake();
+	return ThreadedKernel.scheduler.shouldPreempt();
+    }
+
+    /**
+     * The state of a real-time thread: its parameters, and the release,
+     * deadline, and budget used of its current job.
+     */
+    static class RealTime {
+	RealTime(KThread thread, long period, long budget, long deadline) {
+	    this.thread = thread;
+	    this.period = period;
+	    this.budget = budget;
+	    this.relativeDeadline = deadline;
+	}
+
+	double utilization() {
+	    return (double) budget / relativeDeadline;
+	}
+
+	/**
+	 * Charge the thread for the CPU time it has used since it was last
+	 * charged.
+	 */
+	void charge(long time) {
+	    used += time - lastCharge;
+	    lastCharge = time;
+	}
+
+	/**
+	 * Return <tt>true</tt> if the current job has budget left. A thread
+	 * that is giving up the CPU is charged first.
+	 */
+	boolean hasBudget(boolean running) {
+	    if (running)
+		charge(Machine.timer().getTime());
+	    return used < budget;
+	}
+
+	boolean before(RealTime other) {
+	    if (deadline != other.deadline)
+		return deadline < other.deadline;
+	    return thread.compareTo(other.thread) < 0;
+	}
+
+	KThread thread;
+	long period, budget, relativeDeadline;
+	/** The release time and absolute deadline of the current job. */
+	long release, deadline;
+	/** The CPU time used by the current job. */
+	long used = 0;
+	long lastCharge;
+    }
+
     /**
      * Additional state used by schedulers.
      *
@@ -554,6 +840,20 @@ private int which;
     private static KThread currentThread = null;
     private static KThread toBeDestroyed = null;
     private static KThread idleThread = null;
+    private static boolean ticklessIdle = false;
+
+    /** The alarm timeout this thread is sleeping on, if any. */
+    Alarm.Timeout sleepTimeout = null;
+    /** The next thread sleeping on the same <tt>Condition2</tt>, if any. */
+    KThread nextWaiter = null;
+
+    /** The real-time state of this thread, or <tt>null</tt>. */
+    RealTime realTime = null;
+    /** The real-time threads that are ready and have budget left. */
+    private static EDFQueue realTimeQueue = null;
+    /** The utilization of the admitted real-time threads, and its bound. */
+    private static double realTimeUtilization = 0;
+    private static double realTimeBound = 1.0;
     protected boolean isJoined = false;
     public static KThread tres = null;
     public static KThread uno = null;
@@ -2,9 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedList;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -32,7 +30,7 @@ public class LotteryScheduler extends PriorityScheduler {
      */
     public LotteryScheduler() {
     }
-    
+
     /**
      * Allocate a new lottery thread queue.
      *
@@ -42,7 +40,576 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getLotteryState(thread).tickets;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return (int) Math.min(getLotteryState(thread).effectiveTickets,
+			      priorityMaximum);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		       priority <= priorityMaximum);
+
+	getLotteryState(thread).setTickets(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority + 1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority - 1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * Test that CPU-bound threads get shares of the CPU close to their
+     * shares of the tickets, and that tickets are donated through locks and
+     * through joins. The kernel must be using a lottery scheduler.
+     */
+    public static void selfTest() {
+	Lib.assertTrue(ThreadedKernel.scheduler instanceof LotteryScheduler);
+
+	System.out.println("LotteryScheduler test: shares");
+
+	/* A lottery is held about every 500 ticks, so over a million ticks
+	 * each share should be within a few percent of its tickets' share.
+	 */
+	int[] tickets = { 1, 2, 4 };
+	long[] counts = spinShares(tickets, 1000000);
+	checkShares(tickets, counts, 0.2);
+
+	System.out.println("LotteryScheduler test: donation through a lock");
+
+	final Lock lock = new Lock();
+	KThread current = KThread.currentThread();
+
+	boolean intStatus = Machine.interrupt().disable();
+	int ownTickets = ThreadedKernel.scheduler.getPriority(current);
+	Machine.interrupt().restore(intStatus);
+
+	lock.acquire();
+	KThread waiter = new KThread(new Runnable() {
+		public void run() {
+		    lock.acquire();
+		    lock.release();
+		}
+	    }).setName("lock waiter");
+
+	intStatus = Machine.interrupt().disable();
+	ThreadedKernel.scheduler.setPriority(waiter, 6);
+	Machine.interrupt().restore(intStatus);
+
+	waiter.fork();
+	// wait for the waiter to block on the lock
+	int donated = ownTickets;
+	for (int i=0; i<1000 && donated == ownTickets; i++) {
+	    KThread.yield();
+	    intStatus = Machine.interrupt().disable();
+	    donated = ThreadedKernel.scheduler.getEffectivePriority(current);
+	    Machine.interrupt().restore(intStatus);
+	}
+	System.out.println("holder tickets: " + ownTickets +
+			   ", effective while waited on: " + donated);
+	Lib.assertTrue(donated == ownTickets + 6);
+
+	lock.release();
+	intStatus = Machine.interrupt().disable();
+	Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(current)
+		       == ownTickets);
+	Machine.interrupt().restore(intStatus);
+	waiter.join();
+
+	System.out.println("LotteryScheduler test: donation through join");
+
+	final int[] joined = new int[1];
+	KThread child = new KThread(new Runnable() {
+		public void run() {
+		    KThread self = KThread.currentThread();
+		    // wait for the parent to join
+		    for (int i=0; i<1000 && joined[0] <= 3; i++) {
+			KThread.yield();
+			boolean intStatus = Machine.interrupt().disable();
+			joined[0] =
+			    ThreadedKernel.scheduler.getEffectivePriority(self);
+			Machine.interrupt().restore(intStatus);
+		    }
+		}
+	    }).setName("joined child");
+
+	intStatus = Machine.interrupt().disable();
+	ThreadedKernel.scheduler.setPriority(child, 3);
+	ThreadedKernel.scheduler.setPriority(current, 5);
+	Machine.interrupt().restore(intStatus);
+
+	child.fork();
+	child.join();
+	System.out.println("child tickets: 3, effective while joined: " +
+			   joined[0]);
+	Lib.assertTrue(joined[0] == 3 + 5);
+
+	intStatus = Machine.interrupt().disable();
+	ThreadedKernel.scheduler.setPriority(current, ownTickets);
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Fork a CPU-bound thread holding each number of <i>tickets</i>, and let
+     * them run for <i>ticks</i> ticks. The caller sleeps meanwhile, rather
+     * than joining, so that it does not donate its own tickets.
+     *
+     * @return	the number of times each thread went around its loop, which
+     *		is proportional to the CPU time it got.
+     */
+    static long[] spinShares(int[] tickets, long ticks) {
+	final long end = Machine.timer().getTime() + ticks;
+	final long[] counts = new long[tickets.length];
+	KThread[] threads = new KThread[tickets.length];
+
+	boolean intStatus = Machine.interrupt().disable();
+	for (int i=0; i<tickets.length; i++) {
+	    final int index = i;
+	    threads[i] = new KThread(new Runnable() {
+		    public void run() {
+			while (Machine.timer().getTime() < end) {
+			    Machine.interrupt().disable();
+			    Machine.interrupt().enable();
+			    counts[index]++;
+			}
+		    }
+		}).setName("tickets " + tickets[i]);
+	    ThreadedKernel.scheduler.setPriority(threads[i], tickets[i]);
+	}
+	Machine.interrupt().restore(intStatus);
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].fork();
+	ThreadedKernel.alarm.waitUntil(ticks);
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+
+	return counts;
+    }
+
+    /**
+     * Print each thread's share of <i>counts</i>, and check that it is
+     * within <i>tolerance</i> (relative) of its share of <i>tickets</i>.
+     */
+    static void checkShares(int[] tickets, long[] counts, double tolerance) {
+	long totalTickets = 0, totalCount = 0;
+	for (int i=0; i<tickets.length; i++) {
+	    totalTickets += tickets[i];
+	    totalCount += counts[i];
+	}
+
+	for (int i=0; i<tickets.length; i++) {
+	    double share = (double) tickets[i] / totalTickets;
+	    double got = (double) counts[i] / totalCount;
+
+	    System.out.println("tickets " + tickets[i] + ": count " +
+			       counts[i] + " share " + got +
+			       " (expected " + share + ")");
+	    Lib.assertTrue(Math.abs(got - share) <= share * tolerance);
+	}
+    }
+
+    /**
+     * The default number of tickets for a new thread. Do not change this
+     * value.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have. Do not change
+     * this value.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have. Do not change
+     * this value.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected LotteryState getLotteryState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryState(thread);
+
+	return (LotteryState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> whose waiting threads hold tickets. This class
+     * does the ticket bookkeeping shared by every such queue: it tracks the
+     * total tickets of its waiters, and donates them to its holder if it
+     * transfers priority. Subclasses keep the waiters in whatever structure
+     * suits the way they choose the next thread.
+     */
+    protected abstract class TicketQueue extends ThreadQueue {
+	TicketQueue(boolean transferPriority) {
+	    this.transferPriority = transferPriority;
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    LotteryState state = getLotteryState(thread);
+	    Lib.assertTrue(state.queuedOn == null);
+	    state.waitForAccess(this);
+
+	    state.queuedOn = this;
+	    state.queuedTickets = state.effectiveTickets;
+	    totalTickets += state.queuedTickets;
+	    add(state);
+
+	    donationChanged();
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    LotteryState state = getLotteryState(thread);
+	    LotteryState previousHolder = resourceHolder;
+
+	    resourceHolder = state;
+	    state.acquire(this);
+
+	    if (previousHolder != null && previousHolder != state)
+		previousHolder.release(this);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    LotteryState next = pickNextThread();
+	    if (next == null)
+		return null;
+
+	    remove(next);
+	    totalTickets -= next.queuedTickets;
+	    next.queuedOn = null;
+
+	    acquire(next.thread);
+
+	    return next.thread;
+	}
+
+	/**
+	 * Return the thread that <tt>nextThread()</tt> would return, without
+	 * removing it from this queue.
+	 *
+	 * @return	the next thread, or <tt>null</tt> if none are waiting.
+	 */
+	protected abstract LotteryState pickNextThread();
+
+	/**
+	 * Add a thread that has just started waiting. Its tickets have already
+	 * been counted in <tt>totalTickets</tt>.
+	 */
+	protected abstract void add(LotteryState state);
+
+	/**
+	 * Remove the thread chosen by <tt>pickNextThread()</tt>.
+	 */
+	protected abstract void remove(LotteryState state);
+
+	/**
+	 * Called when a waiter's effective tickets have changed from
+	 * <i>oldTickets</i>. <tt>totalTickets</tt> is already up to date.
+	 */
+	protected abstract void ticketsChanged(LotteryState state,
+					       long oldTickets);
+
+	/**
+	 * Return the number of tickets this queue donates to its resource
+	 * holder: all the tickets of its waiters if it transfers priority,
+	 * otherwise none.
+	 *
+	 * @return	the number of tickets donated.
+	 */
+	public long getDonatedTickets() {
+	    return transferPriority ? totalTickets : 0;
+	}
+
+	/**
+	 * Bring a waiter's tickets up to date with its effective tickets.
+	 */
+	void update(LotteryState state) {
+	    Lib.assertTrue(state.queuedOn == this);
+
+	    long oldTickets = state.queuedTickets;
+	    state.queuedTickets = state.effectiveTickets;
+	    totalTickets += state.queuedTickets - oldTickets;
+	    ticketsChanged(state, oldTickets);
+	}
+
+	/**
+	 * Tell the resource holder that the tickets donated by this queue
+	 * have changed.
+	 */
+	void donationChanged() {
+	    if (transferPriority && resourceHolder != null)
+		resourceHolder.updateEffectiveTickets();
+	}
+
+	/**
+	 * <tt>true</tt> if this queue should transfer tickets from waiting
+	 * threads to the owning thread.
+	 */
+	public boolean transferPriority;
+
+	/** The total tickets of the waiting threads. */
+	protected long totalTickets = 0;
+
+	private LotteryState resourceHolder = null;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     *
+     * <p>
+     * Each waiting thread occupies one slot, and the slots' ticket counts are
+     * kept in a Fenwick tree. Adding, removing, or changing the tickets of a
+     * waiter, and finding the holder of the winning ticket, therefore all take
+     * O(log n) time in the number of slots, however many tickets there are.
+     */
+    protected class LotteryQueue extends TicketQueue {
+	LotteryQueue(boolean transferPriority) {
+	    super(transferPriority);
+	}
+
+	/**
+	 * Hold a lottery among the waiting threads, and return the winner
+	 * without removing it.
+	 *
+	 * @return	the winning thread, or <tt>null</tt> if none are
+	 *		waiting.
+	 */
+	protected LotteryState pickNextThread() {
+	    if (numWaiting == 0)
+		return null;
+
+	    long winningTicket = (long) (Lib.random() * totalTickets);
+	    if (winningTicket >= totalTickets)
+		winningTicket = totalTickets - 1;
+
+	    // find the first slot whose running total exceeds the ticket
+	    int pos = 0;
+	    for (int step=Integer.highestOneBit(slots.length); step>0; step>>=1) {
+		int next = pos + step;
+		if (next <= slots.length && tree[next] <= winningTicket) {
+		    pos = next;
+		    winningTicket -= tree[next];
+		}
+	    }
+
+	    Lib.assertTrue(slots[pos] != null);
+	    return slots[pos];
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<slots.length; i++) {
+		if (slots[i] != null)
+		    System.out.println(slots[i].thread + " tickets: " +
+				       slots[i].queuedTickets);
+	    }
+	}
+
+	protected void add(LotteryState state) {
+	    if (numFree == 0)
+		grow();
+
+	    int slot = freeSlots[--numFree];
+	    slots[slot] = state;
+	    state.slot = slot;
+	    adjust(slot, state.queuedTickets);
+	    numWaiting++;
+	}
+
+	protected void remove(LotteryState state) {
+	    int slot = state.slot;
+	    adjust(slot, -state.queuedTickets);
+	    slots[slot] = null;
+	    freeSlots[numFree++] = slot;
+	    numWaiting--;
+	}
+
+	protected void ticketsChanged(LotteryState state, long oldTickets) {
+	    adjust(state.slot, state.queuedTickets - oldTickets);
+	}
+
+	private void adjust(int slot, long delta) {
+	    for (int i=slot+1; i<=slots.length; i+=(i & -i))
+		tree[i] += delta;
+	}
+
+	/**
+	 * Double the number of slots and rebuild the Fenwick tree over them.
+	 */
+	private void grow() {
+	    int oldSize = slots.length;
+	    int newSize = Math.max(2*oldSize, 4);
+
+	    LotteryState[] newSlots = new LotteryState[newSize];
+	    System.arraycopy(slots, 0, newSlots, 0, oldSize);
+	    slots = newSlots;
+
+	    tree = new long[newSize+1];
+	    for (int i=1; i<=newSize; i++) {
+		if (slots[i-1] != null)
+		    tree[i] += slots[i-1].queuedTickets;
+		int parent = i + (i & -i);
+		if (parent <= newSize)
+		    tree[parent] += tree[i];
+	    }
+
+	    int[] newFree = new int[newSize];
+	    System.arraycopy(freeSlots, 0, newFree, 0, numFree);
+	    for (int i=newSize-1; i>=oldSize; i--)
+		newFree[numFree++] = i;
+	    freeSlots = newFree;
+	}
+
+	/** The waiting thread in each slot, or <tt>null</tt>. */
+	private LotteryState[] slots = new LotteryState[0];
+	/** Fenwick tree over the slots' tickets, indexed from 1. */
+	private long[] tree = new long[1];
+	private int[] freeSlots = new int[0];
+	private int numFree = 0;
+	private int numWaiting = 0;
+    }
+
+    /**
+     * The scheduling state of a thread under a ticket-based scheduler: its
+     * own tickets, its effective tickets (its own plus those donated through
+     * the queues it holds), the queues it holds, and the queue it is waiting
+     * in, if any.
+     */
+    protected class LotteryState {
+	/**
+	 * Allocate a new <tt>LotteryState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public LotteryState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	/**
+	 * Set this thread's own tickets, and pass the change on to whatever
+	 * it is waiting for.
+	 *
+	 * @param	tickets	the new number of tickets.
+	 */
+	public void setTickets(int tickets) {
+	    if (this.tickets == tickets)
+		return;
+
+	    this.tickets = tickets;
+	    updateEffectiveTickets();
+	}
+
+	void waitForAccess(TicketQueue waitQueue) {
+	    if (held.remove(waitQueue))
+		updateEffectiveTickets();
+	}
+
+	void acquire(TicketQueue waitQueue) {
+	    if (!held.contains(waitQueue))
+		held.add(waitQueue);
+
+	    updateEffectiveTickets();
+	}
+
+	void release(TicketQueue waitQueue) {
+	    if (held.remove(waitQueue))
+		updateEffectiveTickets();
+	}
+
+	/**
+	 * Recompute the effective tickets of this thread. If they changed,
+	 * update its place in the queue it waits in, and let that queue pass
+	 * the change on to its holder, and so on down the chain of waits.
+	 * A cycle of waits is a deadlock, and would otherwise add the same
+	 * tickets around it forever, so a thread already being updated is
+	 * not updated again.
+	 */
+	void updateEffectiveTickets() {
+	    if (updating)
+		return;
+
+	    long newTickets = tickets;
+	    for (TicketQueue queue : held)
+		newTickets += queue.getDonatedTickets();
+
+	    if (newTickets == effectiveTickets)
+		return;
+	    effectiveTickets = newTickets;
+
+	    if (queuedOn != null) {
+		updating = true;
+		queuedOn.update(this);
+		queuedOn.donationChanged();
+		updating = false;
+	    }
+	}
+
+	protected KThread thread;
+	protected int tickets = priorityDefault;
+	protected long effectiveTickets = priorityDefault;
+
+	/** The queues this thread holds. */
+	protected LinkedList<TicketQueue> held = new LinkedList<TicketQueue>();
+	/** The queue this thread is waiting in, and the tickets it counts. */
+	protected TicketQueue queuedOn = null;
+	protected long queuedTickets;
+	/** This thread's slot in a <tt>LotteryQueue</tt>. */
+	protected int slot;
+
+	private boolean updating = false;
     }
 }
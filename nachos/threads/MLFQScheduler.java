@@ -0,0 +1,484 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedHashSet;
+
+/**
+ * A multi-level feedback queue scheduler.
+ *
+ * <p>
+ * Threads are kept at one of several levels, level 0 being the most
+ * important, and a thread is always chosen from the most important non-empty
+ * level, in FIFO order within the level. Each level has a quantum of
+ * simulated time:
+ *
+ * <ul>
+ * <li>A thread that has used up its quantum at its level, over however many
+ * turns, is moved down one level.
+ * <li>A thread that blocks (on a <tt>Semaphore</tt>, <tt>Lock</tt>,
+ * <tt>Condition2</tt>, <tt>Alarm</tt>, I/O, or a join) and is then woken
+ * up is moved up one level, with a fresh quantum.
+ * <li>Periodically every thread is moved back to level 0, so that threads
+ * that were moved down cannot starve.
+ * </ul>
+ *
+ * <p>
+ * The timer interrupt only preempts the current thread if it has used up its
+ * quantum, or if a thread at a more important level has become ready.
+ *
+ * <p>
+ * The number of levels, the quantum of each level, and the boost interval
+ * are read from the <tt>MLFQScheduler.levels</tt>,
+ * <tt>MLFQScheduler.quantum<i>n</i></tt>, and
+ * <tt>MLFQScheduler.boostInterval</tt> keys. By default there are three
+ * levels, with quanta of one, two, and four timer periods.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new MLFQ scheduler.
+     */
+    public MLFQScheduler() {
+	levels = Config.getInteger("MLFQScheduler.levels", 3);
+	Lib.assertTrue(levels >= 1 && levels <= 31);
+
+	quantum = new long[levels];
+	for (int i=0; i<levels; i++) {
+	    quantum[i] = Config.getInteger("MLFQScheduler.quantum" + i,
+					   Stats.TimerTicks << i);
+	    Lib.assertTrue(quantum[i] > 0);
+	}
+
+	boostInterval = Config.getInteger("MLFQScheduler.boostInterval",
+					  Stats.TimerTicks * 20);
+	nextBoost = boostInterval;
+    }
+
+    /**
+     * Allocate a new MLFQ thread queue. MLFQ queues never transfer priority.
+     *
+     * @param	transferPriority	ignored.
+     * @return	a new MLFQ thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new MLFQQueue();
+    }
+
+    /**
+     * Return the priority of the specified thread: <tt>levels-1</tt> for a
+     * thread at level 0, down to 0 for a thread at the lowest level.
+     *
+     * @param	thread	the thread whose priority to return.
+     * @return	the priority of the thread.
+     */
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return levels - 1 - getMLFQState(thread).level;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    /**
+     * Move a thread to the level for the specified priority, with a fresh
+     * quantum. A thread waiting in a queue is moved to the back of its new
+     * level in that queue.
+     *
+     * @param	thread		the thread whose priority to set.
+     * @param	priority	the new priority, between 0 and
+     *				<tt>levels-1</tt>.
+     */
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(priority >= 0 && priority < levels);
+
+	MLFQState state = getMLFQState(thread);
+
+	MLFQQueue queue = state.queuedOn;
+	if (queue != null)
+	    queue.remove(state);
+
+	state.epoch = boostEpoch;
+	state.level = levels - 1 - priority;
+	state.used = 0;
+
+	if (queue != null) {
+	    queue.add(state);
+
+	    MLFQState current = getMLFQState(KThread.currentThread());
+	    if (state.level < current.level)
+		preemptPending = true;
+	}
+    }
+
+    public boolean shouldPreempt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+	if (time >= nextBoost)
+	    boost(time);
+
+	if (preemptPending)
+	    return true;
+
+	MLFQState state = getMLFQState(KThread.currentThread());
+	state.checkBoost(time);
+
+	return state.used + state.runTime(time) >= quantum[state.level];
+    }
+
+    public boolean shouldPreemptOnWake() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return preemptPending;
+    }
+
+    /**
+     * Test that a CPU-bound thread is moved down a level each time it uses
+     * up its quantum, up a level when it wakes up from sleeping, and back to
+     * the top at the next boost, and that <tt>setPriority()</tt> moves a
+     * thread that is waiting on the ready queue. The kernel must be using an
+     * MLFQ scheduler, and the boost interval must leave room for a thread to
+     * use up the quanta of every level above the lowest.
+     */
+    public static void selfTest() {
+	Lib.assertTrue(ThreadedKernel.scheduler instanceof MLFQScheduler);
+	final MLFQScheduler s = (MLFQScheduler) ThreadedKernel.scheduler;
+
+	System.out.println("MLFQScheduler test: setPriority on a waiting thread");
+
+	final StringBuffer order = new StringBuffer();
+	KThread a = new KThread(new Runnable() {
+		public void run() { order.append('a'); }
+	    }).setName("mlfq a");
+	KThread b = new KThread(new Runnable() {
+		public void run() { order.append('b'); }
+	    }).setName("mlfq b");
+
+	boolean intStatus = Machine.interrupt().disable();
+	a.fork();
+	b.fork();
+	// a was forked first, but now waits behind b at the lowest level
+	s.setPriority(a, 0);
+	Lib.assertTrue(s.getPriority(a) == 0);
+	Machine.interrupt().restore(intStatus);
+
+	a.join();
+	b.join();
+	System.out.println("run order: " + order);
+	Lib.assertTrue(order.toString().equals("ba"));
+
+	System.out.println("MLFQScheduler test: demotion, promotion, boost");
+
+	// start just after a boost, so the next one is a whole interval away
+	int epoch = s.boostEpoch;
+	ThreadedKernel.alarm.waitUntil(s.nextBoost - Machine.timer().getTime());
+	while (s.boostEpoch == epoch)
+	    KThread.yield();
+
+	KThread hog = new KThread(new Runnable() {
+		public void run() {
+		    KThread self = KThread.currentThread();
+
+		    // each full quantum moves the thread down one level
+		    int priority = s.levels - 1;
+		    long levelStart = Machine.timer().getTime();
+		    Lib.assertTrue(priorityOf(self) == priority);
+		    while (priority > 0) {
+			spin();
+			int now = priorityOf(self);
+			if (now != priority) {
+			    long time = Machine.timer().getTime();
+			    int level = s.levels - 1 - priority;
+			    System.out.println("priority " + priority + " -> " +
+					       now + " after " +
+					       (time - levelStart) + " ticks");
+			    Lib.assertTrue(now == priority - 1);
+			    Lib.assertTrue(time - levelStart >= s.quantum[level]);
+			    priority = now;
+			    levelStart = time;
+			}
+		    }
+
+		    // blocking moves it up one level
+		    ThreadedKernel.alarm.waitUntil(100);
+		    System.out.println("priority after sleeping: " +
+				       priorityOf(self));
+		    Lib.assertTrue(priorityOf(self) == 1);
+
+		    // the next boost moves it back to the top
+		    long boostAt = s.nextBoost;
+		    while (priorityOf(self) != s.levels - 1)
+			spin();
+		    System.out.println("boosted at " + Machine.timer().getTime() +
+				       ", due at " + boostAt);
+		    // at the first timer interrupt after the boost is due
+		    long time = Machine.timer().getTime();
+		    Lib.assertTrue(time >= boostAt &&
+				   time < boostAt + 2*Stats.TimerTicks);
+		}
+	    }).setName("mlfq hog");
+
+	hog.fork();
+	hog.join();
+    }
+
+    private static int priorityOf(KThread thread) {
+	boolean intStatus = Machine.interrupt().disable();
+	int priority = ThreadedKernel.scheduler.getPriority(thread);
+	Machine.interrupt().restore(intStatus);
+	return priority;
+    }
+
+    private static void spin() {
+	Machine.interrupt().disable();
+	Machine.interrupt().enable();
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected MLFQState getMLFQState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new MLFQState(thread);
+
+	return (MLFQState) thread.schedulingState;
+    }
+
+    /**
+     * Move every thread back to level 0. Threads waiting in a queue are moved
+     * now, keeping their order; the rest notice the new boost epoch the next
+     * time they are scheduled.
+     */
+    private void boost(long time) {
+	boostEpoch++;
+	while (nextBoost <= time)
+	    nextBoost += boostInterval;
+
+	for (MLFQQueue queue : busyQueues)
+	    queue.boost();
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> with one FIFO list per level.
+     */
+    protected class MLFQQueue extends ThreadQueue {
+	MLFQQueue() {
+	    head = new MLFQState[levels];
+	    tail = new MLFQState[levels];
+	}
+
+	/**
+	 * Add a thread to this queue. If the thread is the current thread it
+	 * is giving up the CPU, so it is charged for the time it has run, and
+	 * moved down a level if that uses up its quantum. Otherwise it has
+	 * just been woken up (or forked), so it is moved up a level.
+	 */
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    MLFQState state = getMLFQState(thread);
+	    state.checkBoost(Machine.timer().getTime());
+
+	    if (thread == KThread.currentThread()) {
+		// whatever was pending, the current thread is giving way now
+		preemptPending = false;
+
+		state.used += state.runTime(Machine.timer().getTime());
+		if (state.used >= quantum[state.level]) {
+		    state.level = Math.min(state.level + 1, levels - 1);
+		    state.used = 0;
+		}
+	    }
+	    else {
+		if (state.dispatchTime >= 0) {
+		    state.level = Math.max(state.level - 1, 0);
+		    state.used = 0;
+		}
+
+		MLFQState current = getMLFQState(KThread.currentThread());
+		if (state.level < current.level)
+		    preemptPending = true;
+	    }
+
+	    add(state);
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (occupied == 0)
+		return null;
+
+	    MLFQState state = head[Integer.numberOfTrailingZeros(occupied)];
+	    remove(state);
+
+	    state.dispatchTime = Machine.timer().getTime();
+
+	    return state.thread;
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<levels; i++) {
+		for (MLFQState s=head[i]; s!=null; s=s.next)
+		    System.out.println(s.thread + " level " + i);
+	    }
+	}
+
+	void add(MLFQState state) {
+	    Lib.assertTrue(state.queuedOn == null);
+
+	    int level = state.level;
+	    state.prev = tail[level];
+	    state.next = null;
+	    if (tail[level] == null)
+		head[level] = state;
+	    else
+		tail[level].next = state;
+	    tail[level] = state;
+
+	    if (occupied == 0)
+		busyQueues.add(this);
+	    occupied |= 1 << level;
+	    state.queuedOn = this;
+	}
+
+	void remove(MLFQState state) {
+	    Lib.assertTrue(state.queuedOn == this);
+
+	    int level = state.level;
+	    if (state.prev == null)
+		head[level] = state.next;
+	    else
+		state.prev.next = state.next;
+	    if (state.next == null)
+		tail[level] = state.prev;
+	    else
+		state.next.prev = state.prev;
+
+	    if (head[level] == null)
+		occupied &= ~(1 << level);
+	    if (occupied == 0)
+		busyQueues.remove(this);
+
+	    state.prev = state.next = null;
+	    state.queuedOn = null;
+	}
+
+	/**
+	 * Append the lists of the lower levels to level 0, in level order.
+	 */
+	void boost() {
+	    for (int i=1; i<levels; i++) {
+		for (MLFQState s=head[i]; s!=null; s=s.next) {
+		    s.level = 0;
+		    s.used = 0;
+		    s.epoch = boostEpoch;
+		}
+
+		if (head[i] == null)
+		    continue;
+
+		if (tail[0] == null)
+		    head[0] = head[i];
+		else {
+		    tail[0].next = head[i];
+		    head[i].prev = tail[0];
+		}
+		tail[0] = tail[i];
+		head[i] = tail[i] = null;
+	    }
+
+	    for (MLFQState s=head[0]; s!=null; s=s.next)
+		s.epoch = boostEpoch;
+
+	    if (occupied != 0)
+		occupied = 1;
+	}
+
+	private MLFQState[] head, tail;
+	/** Bit <i>n</i> is set if level <i>n</i> is not empty. */
+	private int occupied = 0;
+    }
+
+    /**
+     * The scheduling state of a thread under MLFQ scheduling.
+     */
+    protected class MLFQState {
+	/**
+	 * Allocate a new <tt>MLFQState</tt> object and associate it with the
+	 * specified thread. New threads start at level 0.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public MLFQState(KThread thread) {
+	    this.thread = thread;
+	    this.epoch = boostEpoch;
+	}
+
+	/**
+	 * Return how long this thread has been running since it was last
+	 * dispatched. The first thread was never dispatched, and has been
+	 * running since time 0.
+	 */
+	long runTime(long time) {
+	    return time - Math.max(dispatchTime, 0);
+	}
+
+	/**
+	 * Move this thread back to level 0 if a boost has happened since it
+	 * was last scheduled. If this is the current thread, the time it ran
+	 * before the boost is not charged to its fresh quantum.
+	 *
+	 * @param	time	the current time.
+	 */
+	void checkBoost(long time) {
+	    if (epoch != boostEpoch) {
+		epoch = boostEpoch;
+		level = 0;
+		used = 0;
+		if (thread == KThread.currentThread())
+		    dispatchTime = time;
+	    }
+	}
+
+	protected KThread thread;
+	/** The level of this thread, 0 being the most important. */
+	protected int level = 0;
+	/** The CPU time this thread has used of its quantum at this level. */
+	protected long used = 0;
+	/** When this thread was last dispatched, or -1 if it never was. */
+	protected long dispatchTime = -1;
+	protected int epoch;
+
+	protected MLFQQueue queuedOn = null;
+	protected MLFQState prev = null, next = null;
+    }
+
+    private int levels;
+    private long[] quantum;
+    private long boostInterval;
+    private long nextBoost;
+    private int boostEpoch = 0;
+
+    /**
+     * <tt>true</tt> if a thread at a more important level than the current
+     * thread has become ready since the last dispatch.
+     */
+    private boolean preemptPending = false;
+
+    /** The queues that currently have waiting threads. */
+    private LinkedHashSet<MLFQQueue> busyQueues =
+	new LinkedHashSet<MLFQQueue>();
+}
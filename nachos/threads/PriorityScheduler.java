@@ -71,8 +71,10 @@ public class PriorityScheduler extends Scheduler {
         KThread thread = KThread.currentThread();
 
         int priority = getPriority(thread);
-        if (priority == priorityMaximum)
+        if (priority == priorityMaximum) {
+            Machine.interrupt().restore(intStatus);
             return false;
+        }
 
         setPriority(thread, priority + 1);
 
@@ -86,8 +88,10 @@ public class PriorityScheduler extends Scheduler {
         KThread thread = KThread.currentThread();
 
         int priority = getPriority(thread);
-        if (priority == priorityMinimum)
+        if (priority == priorityMinimum) {
+            Machine.interrupt().restore(intStatus);
             return false;
+        }
 
         setPriority(thread, priority - 1);
 
@@ -133,35 +137,29 @@ public class PriorityScheduler extends Scheduler {
         public void waitForAccess(KThread thread) {
             Lib.assertTrue(Machine.interrupt().disabled());
             ThreadState ts = getThreadState(thread);
-            int thisPriority = ts.getPriority();
-            if (this.resourceHolder != null && this.resourceHolder.getThread().getName() != "main"){
-              if (this.resourceHolder.getPriority() < thisPriority){
-                this.resourceHolder.previousPriority = this.resourceHolder.getPriority();
-                this.resourceHolder.setPriority(thisPriority);
-              }
-            }
 
             //Agrega el queue al listado de los recursos que esta esperando
-            this.waitQueue.add(ts);
             ts.waitForAccess(this);
+            this.enqueue(ts);
+
+            //El nuevo thread puede subir la prioridad que esta cola dona
+            this.donationChanged();
         }
 
         public void acquire(KThread thread) {
             Lib.assertTrue(Machine.interrupt().disabled());
             ThreadState ts = getThreadState(thread);
-            if (this.resourceHolder != null) {
-              //Si antes le donaron prioridad
-                if (this.resourceHolder.previousPriority != 0){
-                  int previous = this.resourceHolder.previousPriority;
-                  this.resourceHolder.setPriority(previous);
-                  this.resourceHolder.previousPriority = 0;
-                }
-                //Borra al thread que tenia esta cola
-                this.resourceHolder.currentResources.remove(this);
-            }
+            ThreadState previousHolder = this.resourceHolder;
+
             //Thread se vuelve dueno de esta cola
             this.resourceHolder = ts;
             ts.acquire(this);
+
+            if (previousHolder != null && previousHolder != ts) {
+                //Borra al thread que tenia esta cola, y con ella su donacion
+                previousHolder.currentResources.remove(this);
+                previousHolder.updateEffectivePriority();
+            }
         }
 
         public KThread nextThread() {
@@ -170,7 +168,7 @@ public class PriorityScheduler extends Scheduler {
             // Escojo el siguiente thread a ejecutar
             ThreadState nextThread = this.pickNextThread();
             if (nextThread == null) return null;
-            this.waitQueue.remove(nextThread);
+            this.dequeue(nextThread);
             // Give nextThread the resource
             this.acquire(nextThread.getThread());
             return nextThread.getThread();
@@ -184,48 +182,104 @@ public class PriorityScheduler extends Scheduler {
          *         return.
          */
         protected ThreadState pickNextThread() {
-            int nextPriority = 0;
-            ThreadState next = waitQueue.peek();
-            for (ThreadState currThread : this.waitQueue) {
-                int currPriority = currThread.getPriority();
-                //System.out.println("Thread " + currThread.getThread().getName());
-                //System.out.println("Priority " + currPriority);
-                if (currPriority == nextPriority){
-                  if(currThread.threadAge <= next.threadAge){
-                      next = currThread;
-                      nextPriority = currPriority;
-                  }
-                }else if (next == null || (currPriority > nextPriority)){
-                  next = currThread;
-                  nextPriority = currPriority;
-                }
+            if (occupied == 0) return null;
+            // La cubeta no vacia de mayor prioridad, y en ella el mas viejo
+            int top = 31 - Integer.numberOfLeadingZeros(occupied);
+            return bucketHead[top];
+        }
 
-            }
-            return next;
+        /**
+         * Add a thread to the bucket for its effective priority. Threads in a
+         * bucket are kept in order of <tt>threadAge</tt>, oldest first. A
+         * thread that just started waiting is the youngest, so it goes
+         * straight to the tail in O(1) time. A waiter moved here by a
+         * priority change keeps its place in line instead: the walk back
+         * from the tail passes every younger waiter in the bucket, so that
+         * case takes O(k) time in the size of the bucket.
+         *
+         * @param ts the thread to add, which must not be in any queue.
+         */
+        protected void enqueue(ThreadState ts) {
+            Lib.assertTrue(ts.queuedOn == null);
+
+            int p = ts.getEffectivePriority();
+            ThreadState after = bucketTail[p];
+            while (after != null && after.threadAge > ts.threadAge)
+                after = after.prevWaiting;
+
+            ts.prevWaiting = after;
+            ts.nextWaiting = (after == null) ? bucketHead[p] : after.nextWaiting;
+            if (ts.prevWaiting == null) bucketHead[p] = ts;
+            else ts.prevWaiting.nextWaiting = ts;
+            if (ts.nextWaiting == null) bucketTail[p] = ts;
+            else ts.nextWaiting.prevWaiting = ts;
+
+            occupied |= 1 << p;
+            ts.queuedOn = this;
+            ts.queuedPriority = p;
         }
 
         /**
-         * This method returns the effectivePriority of this PriorityQueue.
-         * The return value is cached for as long as possible. If the cached value
-         * has been invalidated, this method will spawn a series of mutually
-         * recursive calls needed to recalculate effectivePriorities across the
-         * entire resource graph.
-         * @return
+         * Remove a thread from its bucket in this queue.
+         *
+         * @param ts a thread that is waiting in this queue.
          */
+        protected void dequeue(ThreadState ts) {
+            Lib.assertTrue(ts.queuedOn == this);
+
+            int p = ts.queuedPriority;
+            if (ts.prevWaiting == null) bucketHead[p] = ts.nextWaiting;
+            else ts.prevWaiting.nextWaiting = ts.nextWaiting;
+            if (ts.nextWaiting == null) bucketTail[p] = ts.prevWaiting;
+            else ts.nextWaiting.prevWaiting = ts.prevWaiting;
+
+            if (bucketHead[p] == null)
+                occupied &= ~(1 << p);
+            ts.prevWaiting = ts.nextWaiting = null;
+            ts.queuedOn = null;
+        }
+
+        /**
+         * This method returns the effectivePriority of this PriorityQueue,
+         * that is, the priority it donates to its resource holder: the
+         * highest effective priority among its waiters, or
+         * <tt>priorityMinimum</tt> if it does not transfer priority. The
+         * buckets already cache every waiter's effective priority, so this is
+         * just the highest occupied bucket.
+         * @return the priority donated by this queue.
+         */
+        public int getEffectivePriority() {
+            if (!transferPriority || occupied == 0)
+                return priorityMinimum;
+            return 31 - Integer.numberOfLeadingZeros(occupied);
+        }
+
+        /**
+         * Called whenever the set of waiters, or the effective priority of a
+         * waiter, may have changed. Only the resource holder can be affected,
+         * so the update follows this one edge of the wait graph.
+         */
+        protected void donationChanged() {
+            if (transferPriority && resourceHolder != null)
+                resourceHolder.updateEffectivePriority();
+        }
 
         public void print() {
             Lib.assertTrue(Machine.interrupt().disabled());
-            for (final ThreadState ts : this.waitQueue) {
-                System.out.println(ts.getThread() + " priority: " + ts.getEffectivePriority());
+            for (int p = priorityMaximum; p >= priorityMinimum; p--) {
+                for (ThreadState ts = bucketHead[p]; ts != null; ts = ts.nextWaiting)
+                    System.out.println(ts.getThread() + " priority: " + ts.getEffectivePriority());
             }
         }
 
         public boolean transferPriority;
-        //Lista de threads que estan esperando accesar este recurso
-        protected LinkedList<ThreadState> waitQueue = new LinkedList<ThreadState>();
+        //Threads que estan esperando accesar este recurso, una cubeta FIFO por prioridad
+        protected ThreadState[] bucketHead = new ThreadState[priorityMaximum + 1];
+        protected ThreadState[] bucketTail = new ThreadState[priorityMaximum + 1];
+        //Bit p encendido si la cubeta de prioridad p no esta vacia
+        protected int occupied = 0;
          //variable tipo thread state que indica que thread es dueno actual de este recurso
         protected ThreadState resourceHolder = null;
-        protected int effectivePriority = priorityMinimum;
 
     }
 
@@ -246,7 +300,9 @@ public class PriorityScheduler extends Scheduler {
         public ThreadState(KThread thread) {
             this.thread = thread;
             this.currentResources = new LinkedList<PriorityQueue>();
-            setPriority(priorityDefault);
+            //Un thread nuevo no tiene recursos ni espera, no hay nada que actualizar
+            this.priority = priorityDefault;
+            this.effectivePriority = priorityDefault;
 
         }
 
@@ -265,7 +321,7 @@ public class PriorityScheduler extends Scheduler {
          * @return the effective priority of the associated thread.
          */
         public int getEffectivePriority() {
-            return this.getPriority();
+            return effectivePriority;
         }
 
         /**
@@ -278,6 +334,42 @@ public class PriorityScheduler extends Scheduler {
                 return;
             this.priority = priority;
 
+            updateEffectivePriority();
+        }
+
+        /**
+         * Recompute the cached effective priority: the larger of this
+         * thread's own priority and the priority donated by each queue it
+         * holds. If it changed, move this thread to its new bucket in the
+         * queue it is waiting on, and let that queue pass the change on to
+         * its holder. Donation therefore travels down a chain of waits one
+         * edge at a time, and stops as soon as a priority is unchanged.
+         */
+        protected void updateEffectivePriority() {
+            int newPriority = priority;
+            for (PriorityQueue resource : currentResources)
+                newPriority = Math.max(newPriority, resource.getEffectivePriority());
+
+            if (newPriority == effectivePriority)
+                return;
+            effectivePriorityChanging();
+            effectivePriority = newPriority;
+
+            //Si esta esperando en una cola, pasarlo a la cubeta de su nueva prioridad
+            if (queuedOn != null) {
+                PriorityQueue queue = queuedOn;
+                queue.dequeue(this);
+                queue.enqueue(this);
+                queue.donationChanged();
+            }
+        }
+
+        /**
+         * Called by <tt>updateEffectivePriority()</tt> just before the
+         * effective priority changes. Does nothing here; subclasses that
+         * account for time at the old priority override it.
+         */
+        protected void effectivePriorityChanging() {
         }
 
         /**
@@ -295,7 +387,8 @@ public class PriorityScheduler extends Scheduler {
             this.threadAge = Machine.timer().getTime();
             this.waitingOn = waitQueue;
             //Como lo estoy esperando, lo quito de la lista de lo que actualmente tengo
-            this.currentResources.remove(waitQueue);
+            if (this.currentResources.remove(waitQueue))
+                updateEffectivePriority();
         }
 
         /**
@@ -309,9 +402,13 @@ public class PriorityScheduler extends Scheduler {
          * @see nachos.threads.ThreadQueue#nextThread
          */
         public void acquire(PriorityQueue waitQueue) {
-            this.currentResources.add(waitQueue);
+            if (!this.currentResources.contains(waitQueue))
+                this.currentResources.add(waitQueue);
             //Como el thread ya lo tiene, lo quita de su lista de lo que esta esperando
-            this.waitingOn = null;
+            if (this.waitingOn == waitQueue)
+                this.waitingOn = null;
+            //Los threads que esperan esta cola ahora le donan a este
+            updateEffectivePriority();
         }
 
         /**
@@ -328,11 +425,16 @@ public class PriorityScheduler extends Scheduler {
 
         protected KThread thread;
         protected int priority;
+        //Prioridad incluyendo las donaciones, calculada por updateEffectivePriority
+        protected int effectivePriority = priorityMinimum;
         protected long threadAge = Machine.timer().getTime();
-        //Variable que almacena la prioridad antes de las donaciones
-        protected int previousPriority = 0;
         protected List<PriorityQueue> currentResources;
         protected PriorityQueue waitingOn = null;
+        //Cola en la que esta encolado, su cubeta y sus vecinos en ella
+        protected PriorityQueue queuedOn = null;
+        protected int queuedPriority;
+        protected ThreadState prevWaiting = null;
+        protected ThreadState nextWaiting = null;
 
     }
 
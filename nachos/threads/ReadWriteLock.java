@@ -0,0 +1,340 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <tt>ReadWriteLock</tt> is a lock that can be held either by any number of
+ * <i>readers</i> at once, or by a single <i>writer</i>. It suits data that is
+ * read much more often than it is changed.
+ *
+ * <p>
+ * Writers are preferred: once a writer is waiting, threads that ask to read
+ * wait behind it, so a steady stream of readers cannot starve writers. When
+ * a writer releases the lock, every reader that was waiting is let in
+ * together before the next writer, so writers cannot starve readers either.
+ *
+ * <p>
+ * Waiting threads sit in queues from <tt>newThreadQueue(true)</tt>, so with
+ * a scheduler that transfers priority, waiting readers and writers donate to
+ * the writer holding the lock, or to one of the readers holding it.
+ *
+ * <p>
+ * Neither read nor write access is reentrant, and a reader cannot upgrade to
+ * write access.
+ */
+public class ReadWriteLock {
+    /**
+     * Allocate a new read-write lock. The lock will initially be free.
+     */
+    public ReadWriteLock() {
+    }
+
+    /**
+     * Acquire read access, waiting while a writer holds the lock or is
+     * waiting for it.
+     */
+    public void acquireRead() {
+	Lib.assertTrue(!isReadHeldByCurrentThread() &&
+		       !isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	numReads++;
+
+	if (writer == null && writersWaiting == 0) {
+	    addReader(thread);
+	    if (numReaders == 1)
+		setHolder(thread);
+	}
+	else {
+	    numReadWaits++;
+	    readersWaiting++;
+	    long startTime = Machine.timer().getTime();
+
+	    readQueue.waitForAccess(thread);
+	    KThread.sleep();
+
+	    readWaitTime += Machine.timer().getTime() - startTime;
+	}
+
+	Lib.assertTrue(writer == null);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Give up read access, letting a waiting writer in if this was the last
+     * reader.
+     */
+    public void releaseRead() {
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	removeReader(thread);
+
+	if (numReaders == 0) {
+	    holder = null;
+	    if (writersWaiting > 0)
+		grantWrite();
+	}
+	else if (holder == thread) {
+	    // pass the donations on to a reader that still holds the lock
+	    setHolder(readers[0]);
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Acquire write access, waiting while any other thread holds the lock.
+     */
+    public void acquireWrite() {
+	Lib.assertTrue(!isReadHeldByCurrentThread() &&
+		       !isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	KThread thread = KThread.currentThread();
+
+	numWrites++;
+
+	if (writer == null && numReaders == 0) {
+	    writer = thread;
+	    setHolder(thread);
+	}
+	else {
+	    numWriteWaits++;
+	    writersWaiting++;
+	    long startTime = Machine.timer().getTime();
+
+	    writeQueue.waitForAccess(thread);
+	    KThread.sleep();
+
+	    writeWaitTime += Machine.timer().getTime() - startTime;
+	}
+
+	Lib.assertTrue(writer == thread);
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Give up write access, letting in every waiting reader, or if there are
+     * none, the next waiting writer.
+     */
+    public void releaseWrite() {
+	Lib.assertTrue(isWriteHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	writer = null;
+	holder = null;
+
+	if (readersWaiting > 0) {
+	    KThread thread;
+	    while ((thread = readQueue.nextThread()) != null) {
+		readersWaiting--;
+		addReader(thread);
+		thread.ready();
+	    }
+	    setHolder(readers[numReaders-1]);
+	}
+	else if (writersWaiting > 0) {
+	    grantWrite();
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Test if the current thread holds write access to this lock.
+     *
+     * @return	true if the current thread is the writer.
+     */
+    public boolean isWriteHeldByCurrentThread() {
+	return (writer == KThread.currentThread());
+    }
+
+    /**
+     * Test if the current thread holds read access to this lock.
+     *
+     * @return	true if the current thread is one of the readers.
+     */
+    public boolean isReadHeldByCurrentThread() {
+	return (indexOfReader(KThread.currentThread()) >= 0);
+    }
+
+    /**
+     * Return the number of times read access was asked for, and how many of
+     * those had to wait.
+     */
+    public int getNumReads() {
+	return numReads;
+    }
+
+    public int getNumReadWaits() {
+	return numReadWaits;
+    }
+
+    /**
+     * Return the number of times write access was asked for, and how many of
+     * those had to wait.
+     */
+    public int getNumWrites() {
+	return numWrites;
+    }
+
+    public int getNumWriteWaits() {
+	return numWriteWaits;
+    }
+
+    /**
+     * Return the total number of ticks that readers, and writers, spent
+     * waiting for this lock.
+     */
+    public long getReadWaitTime() {
+	return readWaitTime;
+    }
+
+    public long getWriteWaitTime() {
+	return writeWaitTime;
+    }
+
+    /**
+     * Return the largest number of readers that held this lock at once.
+     */
+    public int getMaxReaders() {
+	return maxReaders;
+    }
+
+    /**
+     * Hand write access to the next waiting writer.
+     */
+    private void grantWrite() {
+	writer = writeQueue.nextThread();
+	Lib.assertTrue(writer != null);
+	writersWaiting--;
+
+	setHolder(writer);
+	writer.ready();
+    }
+
+    /**
+     * Make <i>thread</i> the holder of both wait queues, so that every
+     * waiting thread donates to it.
+     */
+    private void setHolder(KThread thread) {
+	holder = thread;
+	readQueue.acquire(thread);
+	writeQueue.acquire(thread);
+    }
+
+    private void addReader(KThread thread) {
+	if (numReaders == readers.length) {
+	    KThread[] newReaders = new KThread[Math.max(2*numReaders, 4)];
+	    System.arraycopy(readers, 0, newReaders, 0, numReaders);
+	    readers = newReaders;
+	}
+
+	readers[numReaders++] = thread;
+	maxReaders = Math.max(maxReaders, numReaders);
+    }
+
+    private void removeReader(KThread thread) {
+	int i = indexOfReader(thread);
+	Lib.assertTrue(i >= 0);
+
+	readers[i] = readers[--numReaders];
+	readers[numReaders] = null;
+    }
+
+    private int indexOfReader(KThread thread) {
+	for (int i=0; i<numReaders; i++) {
+	    if (readers[i] == thread)
+		return i;
+	}
+
+	return -1;
+    }
+
+    private static class ReaderTest implements Runnable {
+	ReaderTest(ReadWriteLock lock, int[] shared) {
+	    this.lock = lock;
+	    this.shared = shared;
+	}
+
+	public void run() {
+	    for (int i=0; i<5; i++) {
+		lock.acquireRead();
+		int value = shared[0];
+		KThread.yield();
+		Lib.assertTrue(shared[0] == value);
+		lock.releaseRead();
+	    }
+	}
+
+	private ReadWriteLock lock;
+	private int[] shared;
+    }
+
+    private static class WriterTest implements Runnable {
+	WriterTest(ReadWriteLock lock, int[] shared) {
+	    this.lock = lock;
+	    this.shared = shared;
+	}
+
+	public void run() {
+	    for (int i=0; i<5; i++) {
+		lock.acquireWrite();
+		int value = shared[0];
+		KThread.yield();
+		shared[0] = value + 1;
+		lock.releaseWrite();
+	    }
+	}
+
+	private ReadWriteLock lock;
+	private int[] shared;
+    }
+
+    /**
+     * Test that this module is working.
+     */
+    public static void selfTest() {
+	ReadWriteLock lock = new ReadWriteLock();
+	int[] shared = new int[1];
+
+	KThread[] threads = new KThread[6];
+	for (int i=0; i<threads.length; i++) {
+	    if (i%3 == 0)
+		threads[i] = new KThread(new WriterTest(lock, shared));
+	    else
+		threads[i] = new KThread(new ReaderTest(lock, shared));
+	    threads[i].setName("rw" + i).fork();
+	}
+
+	for (int i=0; i<threads.length; i++)
+	    threads[i].join();
+
+	Lib.assertTrue(shared[0] == 10);
+	Lib.assertTrue(lock.getMaxReaders() > 1);
+    }
+
+    private KThread writer = null;
+    private KThread[] readers = new KThread[0];
+    private int numReaders = 0;
+    /** The thread the waiting threads donate to. */
+    private KThread holder = null;
+
+    private int readersWaiting = 0;
+    private int writersWaiting = 0;
+    private ThreadQueue readQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+    private ThreadQueue writeQueue =
+	ThreadedKernel.scheduler.newThreadQueue(true);
+
+    private int numReads = 0, numReadWaits = 0;
+    private int numWrites = 0, numWriteWaits = 0;
+    private long readWaitTime = 0, writeWaitTime = 0;
+    private int maxReaders = 0;
+}
@@ -52,6 +52,18 @@ public abstract class Scheduler {
      */
     public abstract ThreadQueue newThreadQueue(boolean transferPriority);
 
+    /**
+     * Allocate the queue of threads that are ready to run. This is called
+     * once, by <tt>KThread</tt>, and by default is just a queue that does not
+     * transfer priority. Schedulers that need to tell the ready queue apart
+     * from the other queues can keep track of it here.
+     *
+     * @return	a new thread queue, to be used as the ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	return newThreadQueue(false);
+    }
+
     /**
      * Get the priority of the specified thread. Must be called with
      * interrupts disabled.
@@ -154,4 +166,51 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Decide whether the timer interrupt should preempt the current thread.
+     * The default preempts it on every timer interrupt, giving every thread
+     * the same time slice. Schedulers that keep track of how much CPU time
+     * each thread has used can instead let a thread finish its quantum.
+     *
+     * <p>
+     * Interrupts must be disabled when this method is called.
+     *
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    public boolean shouldPreempt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return true;
+    }
+
+    /**
+     * Decide whether a thread that an interrupt has just woken up should
+     * preempt the current thread right away, rather than at the next timer
+     * interrupt. The default never preempts, which leaves time slices as
+     * they are.
+     *
+     * <p>
+     * Interrupts must be disabled when this method is called.
+     *
+     * @return	<tt>true</tt> if the current thread should yield.
+     */
+    public boolean shouldPreemptOnWake() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return false;
+    }
+
+    /**
+     * Called on every context switch, just before <i>previous</i> gives the
+     * CPU to <i>next</i>. The two may be the same thread, and either may be
+     * the idle thread. The default does nothing; schedulers that account for
+     * CPU time can charge <i>previous</i> for the time it has run here.
+     *
+     * <p>
+     * Interrupts must be disabled when this method is called.
+     *
+     * @param	previous	the thread giving up the CPU.
+     * @param	next		the thread about to run.
+     */
+    public void threadSwitched(KThread previous, KThread next) {
+    }
 }
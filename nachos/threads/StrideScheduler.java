@@ -0,0 +1,326 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A scheduler that chooses threads using stride scheduling, a deterministic
+ * form of proportional-share scheduling.
+ *
+ * <p>
+ * As with a lottery scheduler, each thread holds a number of tickets, and
+ * gets the CPU in proportion to them. Instead of holding a lottery, each
+ * thread has a <i>stride</i>, inversely proportional to its tickets, and a
+ * <i>pass</i>. The ready thread with the smallest pass runs next. When it
+ * gives up the CPU, its pass advances by its stride for each full quantum
+ * (<tt>Stats.TimerTicks</tt>) it ran, and in proportion for part of one, so a
+ * thread that blocks early is charged only for the time it used. Over any
+ * interval, a thread's share of the CPU differs from its proportional share
+ * by at most about one quantum.
+ *
+ * <p>
+ * A thread's pass measures its share of the CPU, so it is kept and charged
+ * only by the ready queue. Every other queue (locks, joins, condition
+ * variables) orders each wait on its own: a thread that starts waiting is
+ * given a pass one stride ahead of the queue's global pass, so threads with
+ * more tickets get through sooner, but winning a contended lock is never
+ * charged to the thread's share of the CPU.
+ *
+ * <p>
+ * Tickets are transferred through locks and through joins, and they add, as
+ * with a lottery scheduler; the two schedulers differ only in how they choose
+ * the next thread.
+ */
+public class StrideScheduler extends LotteryScheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer tickets from waiting threads
+     *					to the owning thread.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue(transferPriority, false);
+    }
+
+    /**
+     * Allocate the ready queue, which dispatches the ready thread with the
+     * smallest pass.
+     *
+     * @return	a new stride ready queue.
+     */
+    public ThreadQueue newReadyQueue() {
+	readyQueue = new StrideQueue(false, true);
+	return readyQueue;
+    }
+
+    /**
+     * Charge the thread giving up the CPU for the time it ran. A thread that
+     * is going back on the ready queue was already charged when it was
+     * added, so that its pass was final before it was placed in the heap.
+     */
+    public void threadSwitched(KThread previous, KThread next) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+
+	StrideState state = (StrideState) getLotteryState(previous);
+	if (state.queuedOn == readyQueue)
+	    Lib.assertTrue(state.lastCharge == time);
+	else
+	    state.charge(time);
+
+	((StrideState) getLotteryState(next)).lastCharge = time;
+    }
+
+    /**
+     * Test that CPU-bound threads get shares of the CPU in proportion to
+     * their tickets. Unlike a lottery, stride scheduling is deterministic, so
+     * the shares must be within 5% of the tickets' shares even over a short
+     * run. The kernel must be using a stride scheduler.
+     */
+    public static void selfTest() {
+	Lib.assertTrue(ThreadedKernel.scheduler instanceof StrideScheduler);
+
+	System.out.println("StrideScheduler test: shares");
+
+	int[] tickets = { 1, 2, 4 };
+	checkShares(tickets, spinShares(tickets, 200000), 0.05);
+
+	int[] uneven = { 3, 5, 11, 20 };
+	checkShares(uneven, spinShares(uneven, 200000), 0.05);
+    }
+
+    /**
+     * The stride of a thread holding one ticket. A thread holding <i>t</i>
+     * tickets has stride <tt>stride1/t</tt>.
+     */
+    public static final long stride1 = 1L << 31;
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected LotteryState getLotteryState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new StrideState(thread);
+
+	return (LotteryState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the waiting thread with the
+     * smallest pass, breaking ties in the order the threads arrived. The
+     * waiters are kept in a binary min-heap, so every operation takes
+     * O(log n) time.
+     */
+    protected class StrideQueue extends TicketQueue {
+	StrideQueue(boolean transferPriority, boolean ready) {
+	    super(transferPriority);
+	    this.ready = ready;
+	}
+
+	/**
+	 * Return the thread that <tt>nextThread()</tt> would return, without
+	 * modifying the state of this queue.
+	 *
+	 * @return	the waiting thread with the smallest pass, or
+	 *		<tt>null</tt> if none are waiting.
+	 */
+	protected LotteryState pickNextThread() {
+	    return (size == 0) ? null : heap[0];
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<size; i++)
+		System.out.println(heap[i].thread + " pass: " + heap[i].queuedPass +
+				   " stride: " + heap[i].getStride());
+	}
+
+	protected void add(LotteryState lotteryState) {
+	    StrideState state = (StrideState) lotteryState;
+
+	    if (size == heap.length) {
+		StrideState[] newHeap = new StrideState[Math.max(2*size, 4)];
+		System.arraycopy(heap, 0, newHeap, 0, size);
+		heap = newHeap;
+	    }
+
+	    /* A thread that has not been ready for a while would otherwise
+	     * come back with a pass far behind everyone else's, and hold on
+	     * to the CPU until it caught up.
+	     */
+	    if (ready) {
+		if (state.thread == KThread.currentThread())
+		    state.charge(Machine.timer().getTime());
+		state.queuedPass = state.pass = Math.max(state.pass, globalPass);
+	    }
+	    else
+		state.queuedPass = globalPass + state.getStride();
+	    state.arrival = numArrivals++;
+
+	    heap[size] = state;
+	    state.heapIndex = size++;
+	    siftUp(state.heapIndex);
+	}
+
+	/**
+	 * Remove the thread being dequeued. A thread leaving the ready queue is
+	 * charged later, for the time it actually runs.
+	 */
+	protected void remove(LotteryState lotteryState) {
+	    StrideState state = (StrideState) lotteryState;
+
+	    int i = state.heapIndex;
+	    StrideState last = heap[--size];
+	    heap[size] = null;
+
+	    if (last != state) {
+		heap[i] = last;
+		last.heapIndex = i;
+		siftDown(i);
+		siftUp(last.heapIndex);
+	    }
+
+	    globalPass = Math.max(globalPass, state.queuedPass);
+	}
+
+	/**
+	 * Called when a waiter's tickets, and so its stride, have changed.
+	 * The part of its pass still ahead of this queue's global pass is
+	 * rescaled to the new stride, so that a donation takes effect while
+	 * the thread is still waiting rather than after its next turn.
+	 */
+	protected void ticketsChanged(LotteryState lotteryState,
+				      long oldTickets) {
+	    StrideState state = (StrideState) lotteryState;
+
+	    long oldStride = Math.max(stride1 / oldTickets, 1);
+	    long remain = state.queuedPass - globalPass;
+	    if (remain > 0) {
+		state.queuedPass = globalPass +
+		    (long) ((double) remain * state.getStride() / oldStride);
+	    }
+
+	    siftDown(state.heapIndex);
+	    siftUp(state.heapIndex);
+	}
+
+	private boolean before(StrideState a, StrideState b) {
+	    return a.queuedPass < b.queuedPass ||
+		(a.queuedPass == b.queuedPass && a.arrival < b.arrival);
+	}
+
+	private void siftUp(int i) {
+	    StrideState state = heap[i];
+	    while (i > 0) {
+		int parent = (i-1)/2;
+		if (!before(state, heap[parent]))
+		    break;
+
+		heap[i] = heap[parent];
+		heap[i].heapIndex = i;
+		i = parent;
+	    }
+
+	    heap[i] = state;
+	    state.heapIndex = i;
+	}
+
+	private void siftDown(int i) {
+	    StrideState state = heap[i];
+	    while (true) {
+		int child = 2*i + 1;
+		if (child >= size)
+		    break;
+
+		if (child+1 < size && before(heap[child+1], heap[child]))
+		    child++;
+
+		if (!before(heap[child], state))
+		    break;
+
+		heap[i] = heap[child];
+		heap[i].heapIndex = i;
+		i = child;
+	    }
+
+	    heap[i] = state;
+	    state.heapIndex = i;
+	}
+
+	/**
+	 * <tt>true</tt> if this is the ready queue, which keeps each thread's
+	 * pass from one turn to the next.
+	 */
+	private boolean ready;
+
+	private StrideState[] heap = new StrideState[0];
+	private int size = 0;
+	/** The pass of the most recently dequeued thread. */
+	private long globalPass = 0;
+	private long numArrivals = 0;
+    }
+
+    /**
+     * The scheduling state of a thread under stride scheduling: its ticket
+     * state, plus its pass in the ready queue and its place in the queue it
+     * is waiting in.
+     */
+    protected class StrideState extends LotteryState {
+	/**
+	 * Allocate a new <tt>StrideState</tt> object and associate it with
+	 * the specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public StrideState(KThread thread) {
+	    super(thread);
+	}
+
+	/**
+	 * Return this thread's stride, from its effective tickets.
+	 *
+	 * @return	the amount the thread's pass advances for each full
+	 *		quantum it runs.
+	 */
+	long getStride() {
+	    return Math.max(stride1 / effectiveTickets, 1);
+	}
+
+	/**
+	 * Advance this thread's pass for the time it has run since it was
+	 * last charged, at its current stride.
+	 *
+	 * @param	time	the current time.
+	 */
+	void charge(long time) {
+	    long elapsed = time - lastCharge;
+	    lastCharge = time;
+
+	    pass += getStride() * elapsed / Stats.TimerTicks;
+	}
+
+	/** How far this thread has advanced through the ready queue. */
+	protected long pass = 0;
+	/** When this thread was last charged for the time it has run. */
+	protected long lastCharge = 0;
+	/** This thread's pass in the queue it is waiting in. */
+	protected long queuedPass;
+	protected int heapIndex;
+	protected long arrival;
+    }
+
+    /** The ready queue, whose threads are charged before they are added. */
+    private StrideQueue readyQueue = null;
+}
@@ -47,14 +47,22 @@ public class ThreadedKernel extends Kernel {
      */
     public void selfTest() {
 	//KThread.selfTest();
+	//KThread.yieldBenchmark(100000);
 	//Semaphore.selfTest();
 	//PriorityScheduler.selfTest();
 	//PriorityScheduler.selfTest2();
 	//PriorityScheduler.selfTestRun(7, 4);
+	//LotteryScheduler.selfTest();
+	//StrideScheduler.selfTest();
+	//CFSScheduler.selfTest();
+	//MLFQScheduler.selfTest();
 	//Communicator.selfTest();
 	//Alarm.selfTest();
+	//EDFQueue.selfTest();
 	//Boat.selfTest(3,3);
 	//SynchList.selfTest();
+	//Channel.selfTest();
+	//ReadWriteLock.selfTest();
 	if (Machine.bank() != null) {
 	    ElevatorBank.selfTest();
 	}
@@ -90,6 +98,11 @@ public class ThreadedKernel extends Kernel {
     private static Communicator dummy5 = null;
     private static Rider dummy6 = null;
     private static ElevatorController dummy7 = null;
+    private static StrideScheduler dummy8 = null;
+    private static MLFQScheduler dummy9 = null;
+    private static CFSScheduler dummy10 = null;
+    private static Channel dummy11 = null;
+    private static ReadWriteLock dummy12 = null;
 
 
 }
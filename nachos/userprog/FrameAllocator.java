@@ -0,0 +1,235 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+/**
+ * Keeps track of which frames of physical memory are free. The free frames
+ * are kept in a bitmap packed 64 to a word, with a hint pointing at the word
+ * where the last allocation left off, so finding a free frame looks at one
+ * word instead of one frame at a time, and frames handed out together tend
+ * to be consecutive.
+ *
+ * <p>
+ * All operations are done while holding a lock, so the allocator can be
+ * shared by every process.
+ */
+public class FrameAllocator {
+    /**
+     * Allocate a new frame allocator, with every frame initially free.
+     *
+     * @param	numFrames	the number of frames of physical memory.
+     */
+    public FrameAllocator(int numFrames) {
+	Lib.assertTrue(numFrames >= 0);
+
+	this.numFrames = numFrames;
+	numFree = numFrames;
+
+	free = new long[(numFrames + 63) / 64];
+	for (int i=0; i<free.length; i++)
+	    free[i] = -1L;
+	if (numFrames % 64 != 0)
+	    free[free.length-1] = (1L << (numFrames % 64)) - 1;
+
+	lock = new Lock();
+    }
+
+    /**
+     * Allocate one free frame.
+     *
+     * @return	the frame's physical page number, or -1 if no frames are
+     *		free.
+     */
+    public int allocate() {
+	lock.acquire();
+
+	int ppn = -1;
+	if (numFree > 0)
+	    ppn = take();
+
+	lock.release();
+	return ppn;
+    }
+
+    /**
+     * Allocate <i>count</i> free frames at once. Either all of them are
+     * allocated, or, if not enough frames are free, none are.
+     *
+     * @param	count	the number of frames to allocate.
+     * @return	the physical page numbers of the frames, in increasing order
+     *		where possible, or <tt>null</tt> if fewer than <i>count</i>
+     *		frames are free.
+     */
+    public int[] allocate(int count) {
+	Lib.assertTrue(count >= 0);
+
+	lock.acquire();
+
+	int[] frames = null;
+	if (count <= numFree) {
+	    frames = new int[count];
+	    for (int i=0; i<count; i++)
+		frames[i] = take();
+	}
+
+	lock.release();
+	return frames;
+    }
+
+    /**
+     * Return a frame to the free pool. The frame must be allocated.
+     *
+     * @param	ppn	the physical page number of the frame.
+     */
+    public void free(int ppn) {
+	lock.acquire();
+	release(ppn);
+	lock.release();
+    }
+
+    /**
+     * Return several frames to the free pool at once. The frames must all be
+     * allocated.
+     *
+     * @param	frames	the physical page numbers of the frames.
+     */
+    public void free(int[] frames) {
+	lock.acquire();
+	for (int i=0; i<frames.length; i++)
+	    release(frames[i]);
+	lock.release();
+    }
+
+    /**
+     * Return the number of free frames.
+     *
+     * @return	the number of frames that can be allocated.
+     */
+    public int getNumFree() {
+	return numFree;
+    }
+
+    /**
+     * Return the number of allocated frames.
+     *
+     * @return	the number of frames in use.
+     */
+    public int getNumUsed() {
+	return numFrames - numFree;
+    }
+
+    /**
+     * Return the total number of frames.
+     *
+     * @return	the number of frames of physical memory.
+     */
+    public int getNumFrames() {
+	return numFrames;
+    }
+
+    /**
+     * Tests whether this module is working, on allocators of their own
+     * rather than the kernel's: frames are handed out lowest first across
+     * the 64-frame words of the bitmap, the counts stay right, freed frames
+     * are found again whether they are below or above the hint, and a frame
+     * past the end of the last, partial word is never handed out.
+     */
+    public static void selfTest() {
+	System.out.println("FrameAllocator test: allocate across words");
+
+	FrameAllocator allocator = new FrameAllocator(130);
+	Lib.assertTrue(allocator.getNumFrames() == 130);
+	Lib.assertTrue(allocator.getNumFree() == 130);
+
+	int[] first = allocator.allocate(70);
+	for (int i=0; i<first.length; i++)
+	    Lib.assertTrue(first[i] == i);
+	Lib.assertTrue(allocator.getNumFree() == 60);
+	Lib.assertTrue(allocator.getNumUsed() == 70);
+
+	// free frames on both sides of the first word boundary
+	allocator.free(new int[] { 10, 63, 64, 69 });
+	Lib.assertTrue(allocator.getNumFree() == 64);
+	Lib.assertTrue(allocator.allocate() == 10);
+	Lib.assertTrue(allocator.allocate() == 63);
+	Lib.assertTrue(allocator.allocate() == 64);
+	Lib.assertTrue(allocator.allocate() == 69);
+	Lib.assertTrue(allocator.allocate() == 70);
+
+	System.out.println("FrameAllocator test: exhaustion and the hint");
+
+	// a request that cannot be met takes nothing
+	Lib.assertTrue(allocator.allocate(60) == null);
+	Lib.assertTrue(allocator.getNumFree() == 59);
+
+	int[] rest = allocator.allocate(59);
+	Lib.assertTrue(rest[0] == 71 && rest[58] == 129);
+	Lib.assertTrue(allocator.getNumFree() == 0);
+	Lib.assertTrue(allocator.allocate() == -1);
+
+	/* The hint is now at the last word. Freeing frames in the last and
+	 * first words must bring it back down, so the lowest free frame is
+	 * found first, and the search must still get to the last word.
+	 */
+	allocator.free(129);
+	allocator.free(3);
+	Lib.assertTrue(allocator.allocate() == 3);
+	Lib.assertTrue(allocator.allocate() == 129);
+	Lib.assertTrue(allocator.allocate() == -1);
+
+	allocator.free(rest);
+	allocator.free(first);
+	// only frame 70 is still allocated
+	Lib.assertTrue(allocator.getNumFree() == 129);
+
+	System.out.println("FrameAllocator test: exact multiple of 64");
+
+	FrameAllocator even = new FrameAllocator(128);
+	int[] all = even.allocate(128);
+	Lib.assertTrue(all[63] == 63 && all[64] == 64 && all[127] == 127);
+	Lib.assertTrue(even.allocate() == -1);
+	even.free(all);
+	Lib.assertTrue(even.getNumFree() == 128);
+	Lib.assertTrue(even.allocate() == 0);
+    }
+
+    /**
+     * Take the first free frame at or after the hint. The lock must be held,
+     * and there must be a free frame.
+     */
+    private int take() {
+	while (free[hint] == 0)
+	    hint = (hint + 1) % free.length;
+
+	long word = free[hint];
+	int ppn = hint*64 + Long.numberOfTrailingZeros(word);
+	free[hint] = word & (word - 1);
+	numFree--;
+
+	return ppn;
+    }
+
+    /**
+     * Mark a frame free. The lock must be held, and the frame allocated.
+     */
+    private void release(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numFrames);
+
+	long bit = 1L << (ppn & 63);
+	Lib.assertTrue((free[ppn >> 6] & bit) == 0);
+	free[ppn >> 6] |= bit;
+	numFree++;
+
+	// keep the hint at the lowest word known to have free frames
+	hint = Math.min(hint, ppn >> 6);
+    }
+
+    private int numFrames;
+    private int numFree;
+    /** Bit <i>n</i> of word <i>w</i> is set if frame <i>64w+n</i> is free. */
+    private long[] free;
+    /** The word to start looking for free frames at. */
+    private int hint = 0;
+    private Lock lock;
+}
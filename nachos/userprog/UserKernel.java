@@ -21,7 +21,7 @@ public class UserKernel extends ThreadedKernel {
      */
     public void initialize(String[] args) {
     	super.initialize(args);
-      thePages = new Lock();
+      frameAllocator = new FrameAllocator(Machine.processor().getNumPhysPages());
     	console = new SynchConsole(Machine.console());
 
     	Machine.processor().setExceptionHandler(new Runnable() {
@@ -34,6 +34,7 @@ public class UserKernel extends ThreadedKernel {
      */
     public void selfTest() {
 	       super.selfTest();
+	//FrameAllocator.selfTest();
 
 	/*
 	System.out.println("Testing the console device. Typed characters");
@@ -109,30 +110,8 @@ public class UserKernel extends ThreadedKernel {
   	     super.terminate();
       }
 
-      public static boolean[] getFreePages(){
-    		return freePages;
-    	}
-
-	public static int getNextFreePage(){
-    thePages.acquire();
-		for(int i = 0; i < freePages.length; i++){
-			if (freePages[i] == false) {
-				freePages[i] = true;
-        thePages.release();
-				return i;
-			}
-		}
-    thePages.release();
-		return -1;
-	}
-
-  public static void setFree(int i){
-    freePages[i] = false;
-  }
-
-
-	public static boolean[] freePages = new boolean[Machine.processor().getNumPhysPages()];
-  static Lock thePages;
+    /** Globally accessible allocator of physical memory frames. */
+    public static FrameAllocator frameAllocator;
     /** Globally accessible reference to the synchronized console. */
     public static SynchConsole console;
 
@@ -126,26 +126,7 @@ public class UserProcess {
      */
     public int readVirtualMemory(int vaddr, byte[] data, int offset, int length) {
       	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
-      	int vpn = Machine.processor().pageFromAddress(vaddr);
-      	System.out.println("The vpn is " + vpn);
-
-      	if (vpn > pageTable.length || vpn < 0)
-      		return 0;
-      	int ppn = pageTable[vpn].ppn;
-      	int poffset = Machine.processor().offsetFromAddress(vaddr);
-      	// obtain physical address
-      	int paddr = Machine.processor().makeAddress(ppn, poffset);
-
-      	byte[] memory = Machine.processor().getMemory();
-
-
-      	if (paddr < 0 || paddr >= memory.length)
-      	    return 0;
-
-      	int amount = Math.min(length, memory.length-paddr);
-      	System.arraycopy(memory, paddr, data, offset, amount);
-
-      	return amount;
+      	return copyVirtualMemory(vaddr, data, offset, length, false);
     }
 
     /**
@@ -177,22 +158,169 @@ public class UserProcess {
      */
     public int writeVirtualMemory(int vaddr, byte[] data, int offset, int length) {
       	Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
-      	int vpn = Machine.processor().pageFromAddress(vaddr);
-      	if (vpn > pageTable.length || vpn < 0)
-      		return 0;
-
-      	int ppn = pageTable[vpn].ppn;
-      	int poffset = Machine.processor().offsetFromAddress(vaddr);
-      	// obtain physical address
-      	int paddr = Machine.processor().makeAddress(ppn, poffset);
-      	byte[] memory = Machine.processor().getMemory();
-
-      	if (paddr < 0 || paddr >= memory.length)
-      	    return 0;
-
-      	int amount = Math.min(length, memory.length-paddr);
-      	System.arraycopy(data, offset, memory, paddr, amount);
-      	return amount;
+      	return copyVirtualMemory(vaddr, data, offset, length, true);
+    }
+
+    /**
+     * Copy data between this process's virtual memory and the specified
+     * array, one page at a time. Consecutive virtual pages that map to
+     * consecutive frames are copied together with a single
+     * <tt>arraycopy</tt>. The copy stops at the first page that is not
+     * mapped, or that is read-only when writing, and every page it touches is
+     * marked used (and dirty when writing).
+     *
+     * @param	vaddr	the first byte of virtual memory to copy.
+     * @param	data	the array to copy to or from.
+     * @param	offset	the first byte of the array to copy.
+     * @param	length	the number of bytes to copy.
+     * @param	write	<tt>true</tt> to copy from the array into virtual
+     *			memory.
+     * @return	the number of bytes successfully copied.
+     */
+    private int copyVirtualMemory(int vaddr, byte[] data, int offset,
+				  int length, boolean write) {
+	byte[] memory = Machine.processor().getMemory();
+	int amount = 0;
+
+	while (amount < length) {
+	    int vpn = Processor.pageFromAddress(vaddr + amount);
+	    int pageOffset = Processor.offsetFromAddress(vaddr + amount);
+
+	    TranslationEntry entry = getEntry(vpn, write);
+	    if (entry == null)
+		break;
+
+	    int paddr = entry.ppn*pageSize + pageOffset;
+	    int runLength = mapRun(entry, vpn, pageOffset, length - amount, write);
+
+	    if (write)
+		System.arraycopy(data, offset + amount, memory, paddr, runLength);
+	    else
+		System.arraycopy(memory, paddr, data, offset + amount, runLength);
+
+	    amount += runLength;
+	}
+
+	return amount;
+    }
+
+    /**
+     * Find how much of a copy can be done with a single transfer to or from
+     * main memory, starting at <i>pageOffset</i> in virtual page <i>vpn</i>,
+     * whose entry is <i>entry</i>. The run grows while the next virtual page
+     * is valid and mapped to the next frame, and every page in it is marked
+     * with <tt>touchEntry()</tt>.
+     *
+     * @return	the number of bytes in the run, at most <i>length</i>.
+     */
+    private int mapRun(TranslationEntry entry, int vpn, int pageOffset,
+		       int length, boolean write) {
+	int firstPPN = entry.ppn;
+	int runLength;
+
+	for (int i=1; ; i++) {
+	    touchEntry(entry, write);
+
+	    runLength = Math.min(length, i*pageSize - pageOffset);
+	    if (runLength == length)
+		break;
+
+	    entry = peekEntry(vpn + i, write);
+	    if (entry == null || entry.ppn != firstPPN + i)
+		break;
+	}
+
+	return runLength;
+    }
+
+    /**
+     * Return the page table entry that a copy to or from virtual page
+     * <i>vpn</i> should use, or <tt>null</tt> if the page cannot be accessed
+     * that way.
+     *
+     * @param	vpn	the virtual page to access.
+     * @param	write	<tt>true</tt> if the page will be written.
+     * @return	the entry mapping <i>vpn</i>, or <tt>null</tt>.
+     */
+    protected TranslationEntry getEntry(int vpn, boolean write) {
+	return peekEntry(vpn, write);
+    }
+
+    /**
+     * Mark a page that is about to be copied to or from as used, and if it
+     * is being written, as dirty, dropping any instructions the processor
+     * predecoded from its frame.
+     */
+    private void touchEntry(TranslationEntry entry, boolean write) {
+	entry.used = true;
+	if (write) {
+	    entry.dirty = true;
+	    Machine.processor().invalidatePage(entry.ppn);
+	}
+    }
+
+    /**
+     * Transfer data between an open file and this process's virtual memory,
+     * reading or writing the file straight into or out of the frames in main
+     * memory, so no buffer is needed however large <i>length</i> is. Each
+     * call to the file moves one run of consecutive frames, of at most
+     * <tt>maxTransfer</tt> bytes. The transfer stops early at the first page
+     * that cannot be accessed, or when the file transfers fewer bytes than
+     * asked for.
+     *
+     * @param	file	the file to read or write.
+     * @param	vaddr	the first byte of virtual memory to transfer.
+     * @param	length	the number of bytes to transfer.
+     * @param	toMemory	<tt>true</tt> to read from the file into virtual
+     *				memory, <tt>false</tt> to write virtual memory
+     *				to the file.
+     * @return	the number of bytes transferred, or -1 if nothing could be
+     *		transferred because of an error.
+     */
+    private int transferFile(OpenFile file, int vaddr, int length,
+			     boolean toMemory) {
+	byte[] memory = Machine.processor().getMemory();
+	int amount = 0;
+
+	while (amount < length) {
+	    int vpn = Processor.pageFromAddress(vaddr + amount);
+	    int pageOffset = Processor.offsetFromAddress(vaddr + amount);
+
+	    TranslationEntry entry = getEntry(vpn, toMemory);
+	    if (entry == null)
+		return (amount > 0) ? amount : -1;
+
+	    int paddr = entry.ppn*pageSize + pageOffset;
+	    int chunk = mapRun(entry, vpn, pageOffset,
+			       Math.min(length - amount, maxTransfer), toMemory);
+
+	    int transferred = toMemory ? file.read(memory, paddr, chunk)
+				       : file.write(memory, paddr, chunk);
+	    if (transferred < 0)
+		return (amount > 0) ? amount : -1;
+
+	    amount += transferred;
+	    if (transferred < chunk)
+		break;
+	}
+
+	return amount;
+    }
+
+    /**
+     * Like <tt>getEntry()</tt>, but only returns an entry that is already
+     * valid, without doing anything to make it so. Used to extend a run of
+     * pages that is being copied.
+     */
+    private TranslationEntry peekEntry(int vpn, boolean write) {
+	if (pageTable == null || vpn < 0 || vpn >= pageTable.length)
+	    return null;
+
+	TranslationEntry entry = pageTable[vpn];
+	if (entry == null || !entry.valid || (write && entry.readOnly))
+	    return null;
+
+	return entry;
     }
 
     /**
@@ -292,7 +420,8 @@ public class UserProcess {
      * @return	<tt>true</tt> if the sections were successfully loaded.
      */
     protected boolean loadSections() {
-	if (numPages > UserKernel.getFreePages().length) {
+	int[] frames = UserKernel.frameAllocator.allocate(numPages);
+	if (frames == null) {
 	    coff.close();
 	    Lib.debug(dbgProcess, "\tinsufficient physical memory");
 	    return false;
@@ -301,12 +430,7 @@ public class UserProcess {
 	// initialize la pagetable con el numero de paginas del proceso
 	pageTable = new TranslationEntry[numPages];
 	for (int i = 0; i < numPages; i++){
-		int ppn = UserKernel.getNextFreePage();
-		if (ppn == -1){
-			return false;
-		}
-		System.out.println("Mapeando VPN "+ i + " a PPN " + ppn);
-		pageTable[i] = new TranslationEntry(i, ppn, true,false,false,false);
+		pageTable[i] = new TranslationEntry(i, frames[i], true,false,false,false);
 	}
 
 	// load sections
@@ -337,10 +461,11 @@ public class UserProcess {
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
+        int[] frames = new int[pageTable.length];
         for (int i = 0; i < pageTable.length; ++i){
-		System.out.println("Liberando la PPN " + pageTable[i].ppn);
-            UserKernel.setFree(pageTable[i].ppn);
+            frames[i] = pageTable[i].ppn;
         }
+        UserKernel.frameAllocator.free(frames);
         coff.close();
     }
 
@@ -481,7 +606,7 @@ public class UserProcess {
 		return 0;
 	}
 
-	private void handleExit(int status){
+	protected void handleExit(int status){
 		for (int i=0; i < fdt.length; i++){
 			OpenFile file = fdt[i];
 			if (file != null){
@@ -528,16 +653,9 @@ public class UserProcess {
 	    if (validateFile(fd, size) == false){
     		return -1;
 	    }
-	    byte[] newBuffer = new byte[size];
-	System.out.println("Buff baby " + buffer);
-	    OpenFile myFile = fdt[fd];
-	    int writtenLength = readVirtualMemory(buffer, newBuffer);
-	    if (writtenLength != size){
-	      return -1;
-	    }
-
-	    return myFile.write(newBuffer, 0, writtenLength);
 
+	    //Escribe directo desde las paginas fisicas del proceso, sin buffer
+	    return transferFile(fdt[fd], buffer, size, false);
 	  }
 
 
@@ -548,23 +666,8 @@ public class UserProcess {
     		return -1;
 	    }
 
-	    OpenFile myFile = fdt[fd];
-	    byte[] newBuffer = new byte[size];
-	    int readLength = myFile.read(newBuffer, 0, size);
-	    if (readLength < 0){
-	      //System.out.println("Unable to read");
-	      return -1;
-	    }
-
-	    int wroteMemory = writeVirtualMemory(buffer, newBuffer, 0, readLength);
-	    if (wroteMemory != readLength){
-	      //System.out.println("Read unsuccesful");
-	      return -1;
-	    }
-	    else{
-	      //System.out.println("Read operation completed");
-	      return readLength;
-	    }
+	    //Lee del archivo directo a las paginas fisicas del proceso
+	    return transferFile(fdt[fd], buffer, size, true);
 	  }
 
     private static final int
@@ -694,5 +797,7 @@ public class UserProcess {
     private int argc, argv;
 
     private static final int pageSize = Processor.pageSize;
+    /** The most bytes a read or write syscall passes to the file at once. */
+    private static final int maxTransfer = 16*pageSize;
     private static final char dbgProcess = 'a';
 }
@@ -0,0 +1,146 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A global inverted page table, with one slot for every frame of physical
+ * memory recording which process's virtual page the frame holds. A hash
+ * index on (process, virtual page number) finds the frame holding a given
+ * page in constant expected time, which is what a TLB miss needs to know.
+ *
+ * <p>
+ * Each slot keeps the same <tt>TranslationEntry</tt> object as the owning
+ * process's page table, so used and dirty bits copied back from the TLB are
+ * seen by both.
+ *
+ * <p>
+ * <tt>insert()</tt> and <tt>remove()</tt> disable interrupts while they
+ * change the table, so it can be shared by every process. Lookups only read
+ * the table and never block or tick, so no other thread can run in the
+ * middle of one; they leave interrupts alone, which keeps the TLB miss path
+ * from paying for an interrupt enable on every miss.
+ */
+public class InvertedPageTable {
+    /**
+     * Allocate a new, empty inverted page table.
+     *
+     * @param	numFrames	the number of frames of physical memory.
+     */
+    public InvertedPageTable(int numFrames) {
+	owners = new VMProcess[numFrames];
+	entries = new TranslationEntry[numFrames];
+	nextInBucket = new int[numFrames];
+
+	int numBuckets = 1;
+	while (numBuckets < numFrames)
+	    numBuckets *= 2;
+
+	buckets = new int[numBuckets];
+	Arrays.fill(buckets, -1);
+    }
+
+    /**
+     * Record that the frame <tt>entry.ppn</tt> now holds virtual page
+     * <tt>entry.vpn</tt> of <i>process</i>. The frame must not already be in
+     * the table.
+     *
+     * @param	process	the process that owns the page.
+     * @param	entry	the process's page table entry for the page.
+     */
+    public void insert(VMProcess process, TranslationEntry entry) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	int ppn = entry.ppn;
+	Lib.assertTrue(owners[ppn] == null);
+
+	owners[ppn] = process;
+	entries[ppn] = entry;
+
+	int bucket = hash(process, entry.vpn);
+	nextInBucket[ppn] = buckets[bucket];
+	buckets[bucket] = ppn;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Forget the page held by the specified frame.
+     *
+     * @param	ppn	the frame to remove, which must be in the table.
+     */
+    public void remove(int ppn) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	Lib.assertTrue(owners[ppn] != null);
+
+	int bucket = hash(owners[ppn], entries[ppn].vpn);
+	if (buckets[bucket] == ppn) {
+	    buckets[bucket] = nextInBucket[ppn];
+	}
+	else {
+	    int prev = buckets[bucket];
+	    while (nextInBucket[prev] != ppn)
+		prev = nextInBucket[prev];
+	    nextInBucket[prev] = nextInBucket[ppn];
+	}
+
+	owners[ppn] = null;
+	entries[ppn] = null;
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Find the page table entry of a page that is in memory.
+     *
+     * @param	process	the process that owns the page.
+     * @param	vpn	the virtual page number.
+     * @return	the page's entry, or <tt>null</tt> if the page is not in
+     *		memory.
+     */
+    public TranslationEntry lookup(VMProcess process, int vpn) {
+	int ppn = buckets[hash(process, vpn)];
+	while (ppn != -1 &&
+	       (owners[ppn] != process || entries[ppn].vpn != vpn))
+	    ppn = nextInBucket[ppn];
+
+	return (ppn == -1) ? null : entries[ppn];
+    }
+
+    /**
+     * Return the page table entry of the page held by a frame.
+     *
+     * @param	ppn	the frame.
+     * @return	the entry of the page in the frame, or <tt>null</tt> if the
+     *		frame holds no page.
+     */
+    public TranslationEntry getEntry(int ppn) {
+	return entries[ppn];
+    }
+
+    /**
+     * Return the process that owns the page held by a frame.
+     *
+     * @param	ppn	the frame.
+     * @return	the owner of the page in the frame, or <tt>null</tt> if the
+     *		frame holds no page.
+     */
+    public VMProcess getOwner(int ppn) {
+	return owners[ppn];
+    }
+
+    private int hash(VMProcess process, int vpn) {
+	int h = process.getProcessID()*0x9E3779B1 + vpn;
+	h ^= (h >>> 16);
+	return h & (buckets.length - 1);
+    }
+
+    private VMProcess[] owners;
+    private TranslationEntry[] entries;
+    /** The first frame in each hash bucket, or -1. */
+    private int[] buckets;
+    /** The next frame in the same hash bucket, or -1. */
+    private int[] nextInBucket;
+}
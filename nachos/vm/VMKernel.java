@@ -21,6 +21,9 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	invertedPageTable =
+	    new InvertedPageTable(Machine.processor().getNumPhysPages());
     }
 
     /**
@@ -44,6 +47,73 @@ public class VMKernel extends UserKernel {
 	super.terminate();
     }
 
+    /**
+     * Load a translation into the TLB after a TLB miss. The entry to replace
+     * is chosen with the clock algorithm: the hand skips, and gives a second
+     * chance to, entries the processor has used since the hand last passed
+     * them, so the translations in use stay in the TLB. The replaced entry's
+     * used and dirty bits are copied back to its page table entry first.
+     *
+     * @param	entry	the page table entry of the page that missed.
+     */
+    public static void refillTLB(TranslationEntry entry) {
+	Processor processor = Machine.processor();
+	int tlbSize = processor.getTLBSize();
+
+	while (true) {
+	    TranslationEntry victim = processor.readTLBEntry(tlbHand);
+	    if (!victim.valid)
+		break;
+
+	    syncTLBEntry(victim);
+	    if (!victim.used)
+		break;
+
+	    victim.used = false;
+	    processor.writeTLBEntry(tlbHand, victim);
+	    tlbHand = (tlbHand + 1) % tlbSize;
+	}
+
+	processor.writeTLBEntry(tlbHand, entry);
+	tlbHand = (tlbHand + 1) % tlbSize;
+    }
+
+    /**
+     * Invalidate every TLB entry, first copying their used and dirty bits
+     * back to the page table entries they came from.
+     */
+    public static void flushTLB() {
+	Processor processor = Machine.processor();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry entry = processor.readTLBEntry(i);
+	    if (entry.valid) {
+		syncTLBEntry(entry);
+		processor.writeTLBEntry(i, invalidEntry);
+	    }
+	}
+    }
+
+    /**
+     * Copy the used and dirty bits the processor set in a TLB entry back to
+     * the page table entry of the page in that frame.
+     */
+    private static void syncTLBEntry(TranslationEntry tlbEntry) {
+	TranslationEntry entry = invertedPageTable.getEntry(tlbEntry.ppn);
+	if (entry == null || entry.vpn != tlbEntry.vpn)
+	    return;
+
+	entry.used |= tlbEntry.used;
+	entry.dirty |= tlbEntry.dirty;
+    }
+
+    /** Globally accessible inverted page table, covering every frame. */
+    public static InvertedPageTable invertedPageTable;
+
+    /** The TLB entry the clock hand points at. */
+    private static int tlbHand = 0;
+    private static final TranslationEntry invalidEntry = new TranslationEntry();
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
@@ -5,8 +5,23 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
+ *
+ * <p>
+ * No page is loaded when the process starts. Every page table entry starts
+ * out invalid, and the first access to a page, whether by the program or by
+ * the kernel copying syscall arguments, causes a fault that gives the page a
+ * frame and fills it: from the COFF section it belongs to, or with zeros for
+ * the stack and argument pages. Starting a process therefore costs time,
+ * and the process holds frames, only in proportion to the pages it actually
+ * uses. If no frame is free when a page faults, the process is terminated.
+ *
+ * <p>
+ * A fault outside the address space, or any other exception caused by the
+ * program, terminates the process rather than the machine.
  */
 public class VMProcess extends UserProcess {
     /**
@@ -22,6 +37,10 @@ public class VMProcess extends UserProcess {
      */
     public void saveState() {
 	super.saveState();
+
+	// the next process must not see this process's translations
+	if (Machine.processor().hasTLB())
+	    VMKernel.flushTLB();
     }
 
     /**
@@ -29,7 +48,9 @@ public class VMProcess extends UserProcess {
      * <tt>UThread.restoreState()</tt>.
      */
     public void restoreState() {
-	super.restoreState();
+	// with a TLB, translations are loaded as they miss
+	if (!Machine.processor().hasTLB())
+	    super.restoreState();
     }
 
     /**
@@ -39,15 +60,159 @@ public class VMProcess extends UserProcess {
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	pageTable = new TranslationEntry[numPages];
+	for (int vpn=0; vpn<numPages; vpn++)
+	    pageTable[vpn] = new TranslationEntry(vpn, -1, false, false,
+						  false, false);
+
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+
+	    Lib.debug(dbgProcess, "\t" + section.getName() + " section ("
+		      + section.getLength() + " pages) will be demand-paged");
+
+	    for (int i=0; i<section.getLength(); i++)
+		pageTable[section.getFirstVPN()+i].readOnly =
+		    section.isReadOnly();
+	}
+
+	return true;
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-	super.unloadSections();
-    }    
+	boolean hasTLB = Machine.processor().hasTLB();
+	if (hasTLB)
+	    VMKernel.flushTLB();
+
+	int[] frames = new int[numLoaded];
+	int numFrames = 0;
+	for (int vpn=0; vpn<pageTable.length; vpn++) {
+	    if (pageTable[vpn].valid) {
+		frames[numFrames++] = pageTable[vpn].ppn;
+		pageTable[vpn].valid = false;
+		if (hasTLB)
+		    VMKernel.invertedPageTable.remove(pageTable[vpn].ppn);
+	    }
+	}
+	Lib.assertTrue(numFrames == numLoaded);
+
+	UserKernel.frameAllocator.free(frames);
+	numLoaded = 0;
+
+	coff.close();
+    }
+
+    /**
+     * Return the page table entry for a copy to or from virtual page
+     * <i>vpn</i>, loading the page first if it is not in memory yet. If no
+     * frame is free the entry stays invalid, and the copy stops there.
+     */
+    protected TranslationEntry getEntry(int vpn, boolean write) {
+	if (vpn >= 0 && vpn < numPages && !pageTable[vpn].valid)
+	    loadPage(vpn);
+
+	return super.getEntry(vpn, write);
+    }
+
+    /**
+     * Give virtual page <i>vpn</i> a free frame, and fill it from the
+     * executable, or with zeros if the page is part of the stack or
+     * arguments. The time this takes is added to the paging statistics.
+     *
+     * @param	vpn	the virtual page to load, which must not be valid.
+     * @return	<tt>true</tt> if the page was loaded, or <tt>false</tt> if no
+     *		frame is free.
+     */
+    protected boolean loadPage(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	Lib.assertTrue(!entry.valid);
+
+	long startTime = Machine.timer().getTime();
+
+	int ppn = UserKernel.frameAllocator.allocate();
+	if (ppn == -1) {
+	    Lib.debug(dbgVM, "\tno free frame for VPN " + vpn);
+	    return false;
+	}
+	numLoaded++;
+
+	CoffSection section = findSection(vpn);
+	if (section != null) {
+	    Lib.debug(dbgVM, "\tloading VPN " + vpn + " from "
+		      + section.getName() + " into PPN " + ppn);
+	    section.loadPage(vpn - section.getFirstVPN(), ppn);
+	}
+	else {
+	    Lib.debug(dbgVM, "\tzero-filling VPN " + vpn + " in PPN " + ppn);
+	    byte[] memory = Machine.processor().getMemory();
+	    Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+	    Machine.processor().invalidatePage(ppn);
+	}
+
+	entry.ppn = ppn;
+	entry.used = false;
+	entry.dirty = false;
+	entry.valid = true;
+	if (Machine.processor().hasTLB())
+	    VMKernel.invertedPageTable.insert(this, entry);
+
+	Machine.processor().recordPageLoad(Machine.timer().getTime() -
+					   startTime);
+
+	return true;
+    }
+
+    /**
+     * Return the COFF section holding virtual page <i>vpn</i>, or
+     * <tt>null</tt> if the page is part of the stack or arguments.
+     */
+    private CoffSection findSection(int vpn) {
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+	    if (vpn >= section.getFirstVPN() &&
+		vpn < section.getFirstVPN() + section.getLength())
+		return section;
+	}
+
+	return null;
+    }
+
+    /**
+     * Refill the TLB after a miss at <i>vaddr</i>, from the inverted page
+     * table if the page is in memory, and otherwise after loading it.
+     */
+    private void handleTLBMiss(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vpn >= numPages) {
+	    terminate("TLB miss outside the address space");
+	    return;
+	}
+
+	TranslationEntry entry = VMKernel.invertedPageTable.lookup(this, vpn);
+	if (entry == null) {
+	    if (!loadPage(vpn)) {
+		terminate("out of physical memory");
+		return;
+	    }
+	    entry = pageTable[vpn];
+	}
+
+	// the faulting instruction is retried when this returns
+	VMKernel.refillTLB(entry);
+    }
+
+    /**
+     * Return a number identifying this process, unique among all the
+     * processes created.
+     *
+     * @return	this process's ID.
+     */
+    public int getProcessID() {
+	return processID;
+    }
 
     /**
      * Handle a user exception. Called by
@@ -61,12 +226,51 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
-	default:
+	case Processor.exceptionPageFault:
+	    int vpn = Processor.pageFromAddress(
+		processor.readRegister(Processor.regBadVAddr));
+
+	    // a fault outside the address space is the program's error
+	    if (vpn >= numPages || pageTable[vpn].valid) {
+		terminate("page fault outside the address space");
+		break;
+	    }
+
+	    // the faulting instruction is retried when this returns
+	    if (!loadPage(vpn))
+		terminate("out of physical memory");
+	    break;
+
+	case Processor.exceptionTLBMiss:
+	    handleTLBMiss(processor.readRegister(Processor.regBadVAddr));
+	    break;
+
+	case Processor.exceptionSyscall:
 	    super.handleException(cause);
 	    break;
+
+	default:
+	    terminate(Processor.exceptionNames[cause]);
+	    break;
 	}
     }
-	
+
+    /**
+     * Terminate this process after an error caused by the program, freeing
+     * its frames and files. Never returns.
+     *
+     * @param	reason	a description of the error, for debugging.
+     */
+    private void terminate(String reason) {
+	Lib.debug(dbgVM, "\tprocess " + processID + " terminated: " + reason);
+	handleExit(-1);
+    }
+
+    /** The number of pages that have been given a frame. */
+    private int numLoaded = 0;
+    private int processID = numCreated++;
+    private static int numCreated = 0;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';